@@ -4,10 +4,11 @@ include $(CLEAR_VARS)
 LOCAL_C_INCLUDES := $(LOCAL_PATH)
 LOCAL_MODULE     := libmpg123_jni
 LOCAL_ARM_MODE   := arm
-LOCAL_LDLIBS     := -llog -lc
+LOCAL_LDLIBS     := -llog -lc -lm
 LOCAL_CFLAGS     := -DACCURATE_ROUNDING -U_FORTIFY_SOURCE \
                         -DOPT_ARM \
                         -DREAL_IS_FIXED \
+                        -DFRAME_INDEX \
                         -DNO_REAL \
                         -DNO_32BIT \
                         -DHAVE_STRERROR \
@@ -15,6 +16,9 @@ LOCAL_CFLAGS     := -DACCURATE_ROUNDING -U_FORTIFY_SOURCE \
                         -Wno-int-to-pointer-cast \
                         -Wno-pointer-to-int-cast
 
+# Uncomment to log every frame read or decoded
+# LOCAL_CFLAGS     += -DMPG123_JNI_DEBUG
+
 LOCAL_ASFLAGS	 := -DASMALIGN_BYTE
 
 LOCAL_SRC_FILES :=  Mpg123Decoder.c
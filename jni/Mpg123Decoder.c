@@ -2,8 +2,28 @@
 #include "libmpg123/mpg123lib_intern.h"
 #include <jni.h>
 #include <fcntl.h>
+#include <string.h>
+#include <math.h>
 #include <android/log.h>
 
+/*
+ * Build with -DMPG123_JNI_DEBUG to log every frame read or decoded
+ * one at a time; otherwise only the counters in MP3File are kept.
+ */
+#ifdef MPG123_JNI_DEBUG
+#define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, "mp3decode-jni", __VA_ARGS__)
+#else
+#define LOGV(...) ((void)0)
+#endif
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#define LEVELS_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define LEVELS_SSE2
+#endif
+
 typedef struct _MP3File
 {
 	mpg123_handle* handle;
@@ -11,6 +31,7 @@ typedef struct _MP3File
 	long rate;
 	long num_samples;
 	int samples_per_frame;
+	int down_sample;
 	double secs_per_frame;
 	long num_frames;
 	float duration;
@@ -18,6 +39,12 @@ typedef struct _MP3File
 	unsigned char* buffer;
 	size_t leftSamples;
 	size_t offset;
+	/* see Mpg123Decoder.COUNTER_* */
+	jlong frames_decoded;
+	jlong bytes_read;
+	jlong decode_errors;
+	/* the last frame position scanAll found, unwrapped past 32 bits */
+	jlong scan_position;
 } MP3File;
 
 MP3File* mp3file_init(mpg123_handle *handle) {
@@ -55,55 +82,105 @@ JNIEXPORT jstring JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getErrorMes
 	return (*env)->NewStringUTF(env, mpg123_plain_strerror(error));
 }
 
+/*
+ * Opens filename on mp3's handle, closing whatever file it had open,
+ * and sets mp3 up for it.  The output buffer is kept from the last
+ * file if it's big enough.  Returns 1 on success; on failure the
+ * handle is left closed, ready to open another file.
+ */
+static int mp3file_open(MP3File *mp3, const char *filename)
+{
+    mpg123_handle *mh = mp3->handle;
+    size_t buffer_size;
+    int encoding;
+
+    mp3->leftSamples = 0;
+    mp3->offset = 0;
+    mp3->scan_position = 0;
+    mp3->frames_decoded = 0;
+    mp3->bytes_read = 0;
+    mp3->decode_errors = 0;
+
+    // The last file opened pinned the output format to its own
+    mpg123_format_all(mh);
+    if (mpg123_open(mh, filename) != MPG123_OK)
+        return 0;
+
+    if (mpg123_getformat(mh, &mp3->rate, &mp3->channels, &encoding) != MPG123_OK ||
+        encoding != MPG123_ENC_SIGNED_16)
+    {
+        // Signed 16 is the default output format anyway;
+        // it would actually by only different if we forced it.
+        mpg123_close(mh);
+        return 0;
+    }
+
+    // Ensure that this output format will not change
+    // (it could, when we allow it).
+    mpg123_format_none(mh);
+    mpg123_format(mh, mp3->rate, mp3->channels, encoding);
+
+    buffer_size = mpg123_outblock(mh);
+    if (mp3->buffer == NULL || mp3->buffer_size < buffer_size)
+    {
+        free(mp3->buffer);
+        mp3->buffer = (unsigned char*)malloc(buffer_size);
+        mp3->buffer_size = (mp3->buffer != NULL) ? buffer_size : 0;
+        if (mp3->buffer == NULL)
+        {
+            mpg123_close(mh);
+            return 0;
+        }
+    }
+
+    mp3->num_samples = mpg123_length(mh);
+    mp3->samples_per_frame = mpg123_spf(mh);
+    mp3->secs_per_frame = mpg123_tpf(mh);
+
+    // mpg123_length counts output samples, which are
+    // fewer per frame when down sampling.
+    if (mp3->num_samples == MPG123_ERR || mp3->samples_per_frame < 0)
+        mp3->num_frames = 0;
+    else
+        mp3->num_frames = mp3->num_samples / (mp3->samples_per_frame >> mp3->down_sample);
+
+    if (mp3->num_samples == MPG123_ERR || mp3->samples_per_frame < 0 || mp3->secs_per_frame < 0)
+        mp3->duration = 0;
+    else
+        mp3->duration = mp3->num_frames * mp3->secs_per_frame;
+
+    return 1;
+}
+
+/*
+ * downSample is 0 to decode normally.  1 or 2 opens the file for
+ * analysis only: output is mixed down to mono and decoded at half or
+ * a quarter of the sample rate, which is much cheaper to synthesize.
+ */
 JNIEXPORT jlong JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_openFile
-	(JNIEnv *env, jclass c, jstring filename)
+	(JNIEnv *env, jclass c, jstring filename, jint downSample)
 {
     int err = MPG123_OK;
     mpg123_handle *mh = mpg123_new(NULL, &err);
     if (err == MPG123_OK && mh != NULL)
     {
         MP3File* mp3 = mp3file_init(mh);
-        const char* fileString = (*env)->GetStringUTFChars(env, filename, NULL);
-        err = mpg123_open(mh, fileString);
-        (*env)->ReleaseStringUTFChars(env, filename, fileString);
+        const char* fileString;
+        int opened;
 
-        if (err == MPG123_OK)
+        mp3->down_sample = downSample;
+        if (downSample > 0)
         {
-            int encoding;
-            if (mpg123_getformat(mh, &mp3->rate, &mp3->channels, &encoding) == MPG123_OK)
-            {
-                if(encoding == MPG123_ENC_SIGNED_16)
-                {
-                    // Signed 16 is the default output format anyway;
-                    // it would actually by only different if we forced it.
-                    // So this check is here just for this explanation.
-
-                    // Ensure that this output format will not change
-                    // (it could, when we allow it).
-                    mpg123_format_none(mh);
-                    mpg123_format(mh, mp3->rate, mp3->channels, encoding);
-
-                    mp3->buffer_size = mpg123_outblock(mh);
-                    mp3->buffer = (unsigned char*)malloc(mp3->buffer_size);
-
-                    mp3->num_samples = mpg123_length(mh);
-                    mp3->samples_per_frame = mpg123_spf(mh);
-                    mp3->secs_per_frame = mpg123_tpf(mh);
-
-                    if (mp3->num_samples == MPG123_ERR || mp3->samples_per_frame < 0)
-                        mp3->num_frames = 0;
-                    else
-                        mp3->num_frames = mp3->num_samples / mp3->samples_per_frame;
-
-                    if (mp3->num_samples == MPG123_ERR || mp3->samples_per_frame < 0 || mp3->secs_per_frame < 0)
-                        mp3->duration = 0;
-                    else
-                        mp3->duration = mp3->num_samples / mp3->samples_per_frame * mp3->secs_per_frame;
-
-                    return (jlong)mp3;
-                }
-            }
+            mpg123_param(mh, MPG123_ADD_FLAGS, MPG123_MONO_MIX, 0);
+            mpg123_param(mh, MPG123_DOWN_SAMPLE, downSample, 0);
         }
+        fileString = (*env)->GetStringUTFChars(env, filename, NULL);
+        opened = (fileString != NULL) && mp3file_open(mp3, fileString);
+        if (fileString != NULL)
+            (*env)->ReleaseStringUTFChars(env, filename, fileString);
+
+        if (opened)
+            return (jlong)mp3;
         mp3file_delete(mp3);
     } else {
         __android_log_write(ANDROID_LOG_INFO, "mp3decoders-jni", mpg123_plain_strerror(err));
@@ -111,6 +188,37 @@ JNIEXPORT jlong JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_openFile
     return 0;
 }
 
+/*
+ * Opens another file on a handle from openFile, keeping its decode
+ * mode and buffers.  Returns false if the file can't be opened, in
+ * which case the handle can still be reopened or deleted.
+ */
+JNIEXPORT jboolean JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_reopenFile
+	(JNIEnv *env, jclass c, jlong handle, jstring filename)
+{
+    MP3File *mp3 = (MP3File*)handle;
+    const char* fileString = (*env)->GetStringUTFChars(env, filename, NULL);
+    int opened;
+
+    if (fileString == NULL)
+        return JNI_FALSE;
+    opened = mp3file_open(mp3, fileString);
+    (*env)->ReleaseStringUTFChars(env, filename, fileString);
+    return opened ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Closes the handle's file but keeps the handle, for pooling.
+ */
+JNIEXPORT void JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_closeFile
+	(JNIEnv *env, jclass c, jlong handle)
+{
+    MP3File *mp3 = (MP3File*)handle;
+    mpg123_close(mp3->handle);
+    mp3->leftSamples = 0;
+    mp3->offset = 0;
+}
+
 JNIEXPORT void JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_delete
 	(JNIEnv *env, jclass c, jlong handle)
 {
@@ -133,12 +241,10 @@ JNIEXPORT float JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_readNextFrame
 	(JNIEnv *env, jclass c, jlong handle)
 {
     MP3File *mp3 = (MP3File*)handle;
-    size_t done = 0;
-    struct mpg123_frameinfo mi;
     int err = mpg123_framebyframe_next(mp3->handle);
-    char buf[256];
-    sprintf(buf, "readNextFrame() err = %d", err);
-    __android_log_write(ANDROID_LOG_INFO, "mp3decode-jni", buf);
+    if (err == MPG123_OK || err == MPG123_NEW_FORMAT)
+        mp3->bytes_read += mp3->handle->framesize + 4;
+    LOGV("readNextFrame() err = %d", err);
 
     return err;
 }
@@ -150,42 +256,299 @@ JNIEXPORT float JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_decodeFrame
     size_t bytes = 0;
     unsigned char *dummy;
     int err = mpg123_framebyframe_decode(mp3->handle, NULL, &dummy, &bytes);
-    char buf[256];
-    sprintf(buf, "decodeFrame() bytes = %d", bytes);
- 
-    __android_log_write(ANDROID_LOG_INFO, "mp3decode-jni", buf);
-    if (err != MPG123_OK)
-        __android_log_write(ANDROID_LOG_INFO, "mp3decode-jni", mpg123_plain_strerror(err));
+    mp3->frames_decoded++;
+    if (err != MPG123_OK) {
+        mp3->decode_errors++;
+        LOGV("decodeFrame() err = %d: %s", err, mpg123_plain_strerror(err));
+    }
+    LOGV("decodeFrame() bytes = %d", (int)bytes);
     mp3->leftSamples = bytes / 2;
     mp3->offset = 0;
-    sprintf(buf, "decodeFrame() err = %d", err);
-    __android_log_write(ANDROID_LOG_INFO, "mp3decode-jni", buf);
 
     return err != MPG123_OK ? 0 : bytes;
 }
 
-JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_readSamplesAll
-	(JNIEnv *env, jclass c, jlong handle)
+/* Mean absolute value of a block of decoded samples, scaled to 0-255 */
+static int averageGain(const short* samples, int numSamples)
 {
-    MP3File *mp3 = (MP3File*)handle;
-    char buf[256];
-
-    int numSamples = mp3->leftSamples;
-    int idx = 0;
     float sum = 0.0f;
+    int idx;
     int value;
-    size_t offset = 0;
-    while (idx < numSamples) {
-        short* src = ((short*)mp3->handle->buffer.p) + offset;
-        value = (float) *src;
+
+    if (numSamples <= 0)
+        return 0;
+
+    for (idx = 0; idx < numSamples; idx++) {
+        value = samples[idx];
         value = value > 0 ? value : -value;
         sum += value;
-        offset++;
-        idx++;
     }
-    int ret = (int) ((sum / numSamples) / 32767 * 255);
+    return (int) ((sum / numSamples) / 32767 * 255);
+}
+
+/*
+ * Peak and sum of squares of each channel of numSamples interleaved
+ * samples, for 1 or 2 channels.  Eight samples at a time go through
+ * NEON or SSE2 when we have them; since eight is even, each lane
+ * always holds the same channel, so the lanes are only combined per
+ * channel at the end.
+ */
+static void channelLevels(const short* samples, int numSamples, int channels,
+                          int* peaks, float* squares)
+{
+    short peakLanes[8];
+    float squareLanes[4];
+    int i = 0;
+    int lane;
+
+    peaks[0] = peaks[1] = 0;
+    squares[0] = squares[1] = 0.0f;
+
+#if defined(LEVELS_NEON)
+    {
+        int16x8_t peak = vdupq_n_s16(0);
+        float32x4_t square = vdupq_n_f32(0.0f);
+        for (; i + 8 <= numSamples; i += 8) {
+            int16x8_t x = vld1q_s16(samples + i);
+            float32x4_t lo = vcvtq_f32_s32(vmovl_s16(vget_low_s16(x)));
+            float32x4_t hi = vcvtq_f32_s32(vmovl_s16(vget_high_s16(x)));
+            peak = vmaxq_s16(peak, vqabsq_s16(x));
+            square = vmlaq_f32(square, lo, lo);
+            square = vmlaq_f32(square, hi, hi);
+        }
+        vst1q_s16(peakLanes, peak);
+        vst1q_f32(squareLanes, square);
+    }
+#elif defined(LEVELS_SSE2)
+    {
+        const __m128i zero = _mm_setzero_si128();
+        __m128i peak = zero;
+        __m128 square = _mm_setzero_ps();
+        for (; i + 8 <= numSamples; i += 8) {
+            __m128i x = _mm_loadu_si128((const __m128i*)(samples + i));
+            __m128i sign = _mm_srai_epi16(x, 15);
+            __m128 lo = _mm_cvtepi32_ps(_mm_unpacklo_epi16(x, sign));
+            __m128 hi = _mm_cvtepi32_ps(_mm_unpackhi_epi16(x, sign));
+            /* subs saturates, so -32768 comes out as 32767 */
+            peak = _mm_max_epi16(peak, _mm_max_epi16(x, _mm_subs_epi16(zero, x)));
+            square = _mm_add_ps(square, _mm_add_ps(_mm_mul_ps(lo, lo),
+                                                   _mm_mul_ps(hi, hi)));
+        }
+        _mm_storeu_si128((__m128i*)peakLanes, peak);
+        _mm_storeu_ps(squareLanes, square);
+    }
+#else
+    memset(peakLanes, 0, sizeof(peakLanes));
+    memset(squareLanes, 0, sizeof(squareLanes));
+#endif
+
+    for (lane = 0; lane < 8; lane++) {
+        int channel = lane % channels;
+        if (peakLanes[lane] > peaks[channel])
+            peaks[channel] = peakLanes[lane];
+        if (lane < 4)
+            squares[lane % channels] += squareLanes[lane];
+    }
 
-    return ret;
+    for (; i < numSamples; i++) {
+        int channel = i % channels;
+        int value = samples[i];
+        float sample = value;
+        value = value > 0 ? value : -value;
+        if (value > 32767)
+            value = 32767;
+        if (value > peaks[channel])
+            peaks[channel] = value;
+        squares[channel] += sample * sample;
+    }
+}
+
+/*
+ * Splits a frame's decoded samples into levelsPerFrame equal parts
+ * (the last one taking any left over) and stores the peak and RMS of
+ * each channel of each part, in that order, as values from 0 to 32767.
+ * Frames that didn't decode get all zeros.
+ */
+static void frameLevels(const short* samples, int numSamples, int channels,
+                        int levelsPerFrame, jshort* levels)
+{
+    int sampleFrames = numSamples / channels;
+    int partFrames = sampleFrames / levelsPerFrame;
+    int part;
+
+    for (part = 0; part < levelsPerFrame; part++) {
+        int start = part * partFrames;
+        int count = (part == levelsPerFrame - 1) ? sampleFrames - start : partFrames;
+        int peaks[2];
+        float squares[2];
+        int c;
+
+        if (count > 0 && samples != NULL)
+            channelLevels(samples + start * channels, count * channels, channels,
+                          peaks, squares);
+        for (c = 0; c < channels; c++) {
+            if (count > 0 && samples != NULL) {
+                float rms = sqrtf(squares[c] / count);
+                *levels++ = (jshort)peaks[c];
+                *levels++ = (jshort)(rms > 32767.0f ? 32767 : rms);
+            } else {
+                *levels++ = 0;
+                *levels++ = 0;
+            }
+        }
+    }
+}
+
+JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_readSamplesAll
+	(JNIEnv *env, jclass c, jlong handle)
+{
+    MP3File *mp3 = (MP3File*)handle;
+
+    return averageGain((short*)mp3->handle->buffer.p, mp3->leftSamples);
+}
+
+/*
+ * Given the previous full file position and a new position as reported
+ * by libmpg123, which may have wrapped around at 32 bits, returns the
+ * full new position.
+ */
+static jlong unwrapPosition(jlong previous, off_t position)
+{
+#if SIZEOF_OFF_T < 8
+    const jlong wrap = (jlong)1 << (8 * SIZEOF_OFF_T);
+    jlong full = (previous & ~(wrap - 1)) | ((jlong)position & (wrap - 1));
+    if (full < previous)
+        full += wrap;
+    return full;
+#else
+    return position;
+#endif
+}
+
+/*
+ * Walks the rest of the file frame by frame, storing the byte offset,
+ * length and gain of each frame into the given arrays starting at
+ * index start, until the arrays are full or the file ends.  If levels
+ * isn't NULL, levelsPerFrame sets of per-channel peak and RMS values
+ * for each frame (see frameLevels) go into it too, starting at the
+ * same frame, as long as it has room for all of them.  Every
+ * interval frames the results so far are copied back to Java and
+ * listener.reportProgress() is called; if it returns false the scan
+ * stops.  Returns the index after the last frame stored, so a return
+ * value equal to the array length means there may be more frames, or
+ * -1 minus that index if the listener stopped the scan, since it may
+ * have done so just as the arrays filled up.
+ *
+ * libmpg123 is built with a 32-bit off_t, so its frame positions wrap
+ * around in files over 2 GB.  Frames only move forward, so each wrap
+ * is detected here and the offsets stored are the full 64-bit ones.
+ * The last position is kept in the MP3File so a wrap carries over to
+ * the next call; seeking starts counting again from the start of the
+ * file, so only scans that aren't preceded by a seek get full offsets.
+ */
+JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_scanAll
+	(JNIEnv *env, jclass c, jlong handle,
+	 jlongArray offsets, jintArray lens, jintArray gains,
+	 jshortArray levels, jint levelsPerFrame, jint start,
+	 jlong fileSize, jobject listener, jint interval)
+{
+    MP3File *mp3 = (MP3File*)handle;
+    jsize capacity = (*env)->GetArrayLength(env, gains);
+    jmethodID reportProgress = NULL;
+    jlong *chunkOffsets;
+    jint *chunkLens;
+    jint *chunkGains;
+    jshort *chunkLevels = NULL;
+    jint levelsStride = 0;
+    jlong position = mp3->scan_position;
+    jint index = start;
+    jint chunkStart = start;
+    int keepGoing = 1;
+    int cancelled = 0;
+
+    if (interval <= 0)
+        interval = 1;
+    if (levels != NULL && levelsPerFrame > 0 &&
+        (mp3->channels == 1 || mp3->channels == 2)) {
+        levelsStride = levelsPerFrame * mp3->channels * 2;
+        if ((*env)->GetArrayLength(env, levels) / levelsStride < capacity)
+            levelsStride = 0;
+    }
+    if (listener != NULL) {
+        jclass listenerClass = (*env)->GetObjectClass(env, listener);
+        reportProgress = (*env)->GetMethodID(env, listenerClass,
+                                             "reportProgress", "(D)Z");
+        (*env)->DeleteLocalRef(env, listenerClass);
+        if (reportProgress == NULL)
+            return start;
+    }
+
+    chunkOffsets = (jlong*)malloc(interval * sizeof(jlong));
+    chunkLens = (jint*)malloc(2 * interval * sizeof(jint));
+    if (levelsStride > 0)
+        chunkLevels = (jshort*)malloc(interval * levelsStride * sizeof(jshort));
+    if (chunkOffsets == NULL || chunkLens == NULL ||
+        (levelsStride > 0 && chunkLevels == NULL)) {
+        free(chunkOffsets);
+        free(chunkLens);
+        free(chunkLevels);
+        return start;
+    }
+    chunkGains = chunkLens + interval;
+
+    while (keepGoing && index < capacity) {
+        size_t bytes = 0;
+        unsigned char *audio = NULL;
+        jint n = index - chunkStart;
+        int err = mpg123_framebyframe_next(mp3->handle);
+        if (err != MPG123_OK && err != MPG123_NEW_FORMAT)
+            keepGoing = 0;
+        else if (mpg123_framebyframe_decode(mp3->handle, NULL, &audio, &bytes)
+                 != MPG123_OK) {
+            bytes = 0;
+            mp3->decode_errors++;
+        }
+
+        if (keepGoing) {
+            position = unwrapPosition(position, mpg123_framepos(mp3->handle));
+            chunkOffsets[n] = position;
+            chunkLens[n] = mp3->handle->framesize + 4;
+            mp3->frames_decoded++;
+            mp3->bytes_read += chunkLens[n];
+            chunkGains[n] = averageGain((short*)audio, bytes / 2);
+            if (levelsStride > 0)
+                frameLevels((short*)audio, bytes / 2, mp3->channels,
+                            levelsPerFrame, chunkLevels + n * levelsStride);
+            index++;
+            n++;
+        }
+
+        if (n == interval || index == capacity || !keepGoing) {
+            (*env)->SetLongArrayRegion(env, offsets, chunkStart, n, chunkOffsets);
+            (*env)->SetIntArrayRegion(env, lens, chunkStart, n, chunkLens);
+            (*env)->SetIntArrayRegion(env, gains, chunkStart, n, chunkGains);
+            if (levelsStride > 0)
+                (*env)->SetShortArrayRegion(env, levels, chunkStart * levelsStride,
+                                            n * levelsStride, chunkLevels);
+            chunkStart = index;
+
+            if (keepGoing && reportProgress != NULL && fileSize > 0) {
+                jdouble fraction = (jdouble)position / fileSize;
+                if (!(*env)->CallBooleanMethod(env, listener, reportProgress, fraction))
+                    cancelled = 1;
+                if ((*env)->ExceptionCheck(env))
+                    cancelled = 1;
+                if (cancelled)
+                    keepGoing = 0;
+            }
+        }
+    }
+
+    free(chunkOffsets);
+    free(chunkLens);
+    free(chunkLevels);
+    mp3->scan_position = position;
+    return cancelled ? -1 - index : index;
 }
 
 JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getFrameLen
@@ -196,6 +559,18 @@ JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getFrameLen
     return (mp3->handle->framesize + 4);
 }
 
+JNIEXPORT void JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getCounters
+	(JNIEnv *env, jclass c, jlong handle, jlongArray counters)
+{
+    MP3File *mp3 = (MP3File*)handle;
+    jlong values[3];
+
+    values[0] = mp3->frames_decoded;
+    values[1] = mp3->bytes_read;
+    values[2] = mp3->decode_errors;
+    (*env)->SetLongArrayRegion(env, counters, 0, 3, values);
+}
+
 JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getSamplesPerFrame
 	(JNIEnv *env, jclass c, jlong handle)
 {
@@ -217,63 +592,155 @@ JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getBitRate
     return frame_bitrate(mp3->handle);
 }
 
+/*
+ * Returns how many of the next numSamples decoded samples are ready in
+ * mp3->buffer, decoding the next block if it's empty, or 0 at the end
+ * of the file.
+ */
+static inline size_t availableSamples(MP3File* mp3, size_t numSamples)
+{
+    if (mp3->leftSamples == 0 && readBuffer(mp3) == 0)
+        return 0;
+    return mp3->leftSamples < numSamples ? mp3->leftSamples : numSamples;
+}
+
+/*
+ * The read and skip functions below return the number of samples read
+ * or skipped, which is only less than numSamples at the end of the file.
+ */
 JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_readSamples
 	(JNIEnv *env, jclass c, jlong handle, jshortArray obj_buffer, jint offset, jint numSamples)
 {
     MP3File *mp3 = (MP3File *)handle;
-    short* buffer = (short*)(*env)->GetPrimitiveArrayCritical(env, obj_buffer, 0);
-    short* target = buffer + offset;
+    jint idx = 0;
+    size_t n;
 
-    int idx = 0;
-    while (idx != numSamples)
+    while (idx < numSamples && (n = availableSamples(mp3, numSamples - idx)) > 0)
     {
-        if (mp3->leftSamples > 0)
-        {
-            short* src = ((short*)mp3->buffer) + mp3->offset;
-            while (idx < numSamples && mp3->offset < mp3->buffer_size / 2) {
-                *target = *src;
-                mp3->leftSamples--;
-                mp3->offset++;
-                target++;
-                src++;
-                idx++;
-            }
-        }
-        else if (readBuffer(mp3) == 0) {
-            (*env)->ReleasePrimitiveArrayCritical(env, obj_buffer, buffer, 0);
-            return 0;
-        }
+        (*env)->SetShortArrayRegion(env, obj_buffer, offset + idx, n,
+                                    ((jshort*)mp3->buffer) + mp3->offset);
+        mp3->leftSamples -= n;
+        mp3->offset += n;
+        idx += n;
     }
+    return idx;
+}
 
-    (*env)->ReleasePrimitiveArrayCritical(env, obj_buffer, buffer, 0);
-    return idx > numSamples ? 0 : idx;
+/*
+ * Like readSamples, but into a direct buffer, copying each block of
+ * decoded samples with a single memcpy.  offset and numSamples count
+ * shorts, and must fit in the buffer's capacity.
+ */
+JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_readSamplesDirect
+	(JNIEnv *env, jclass c, jlong handle, jobject obj_buffer, jint offset, jint numSamples)
+{
+    MP3File *mp3 = (MP3File *)handle;
+    short* target = (short*)(*env)->GetDirectBufferAddress(env, obj_buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, obj_buffer);
+    jint idx = 0;
+    size_t n;
+
+    if (target == NULL || offset < 0 || numSamples < 0 ||
+        (jlong)offset + numSamples > capacity)
+        return -1;
+    target += offset;
+
+    while (idx < numSamples && (n = availableSamples(mp3, numSamples - idx)) > 0)
+    {
+        memcpy(target + idx, ((short*)mp3->buffer) + mp3->offset, n * sizeof(short));
+        mp3->leftSamples -= n;
+        mp3->offset += n;
+        idx += n;
+    }
+    return idx;
 }
 
 JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_skipSamples
 	(JNIEnv *env, jclass c, jlong handle, jint numSamples)
 {
     MP3File *mp3 = (MP3File *)handle;
-    int idx = 0;
-    while (idx != numSamples)
+    jint idx = 0;
+    size_t n;
+
+    while (idx < numSamples && (n = availableSamples(mp3, numSamples - idx)) > 0)
     {
-        if (mp3->leftSamples > 0) {
-            while(idx < numSamples && mp3->offset < mp3->buffer_size / 2) {
-                mp3->leftSamples--;
-                mp3->offset++;
-                idx++;
-            }
-        } else if (readBuffer(mp3) == 0)
-            return 0;
+        mp3->leftSamples -= n;
+        mp3->offset += n;
+        idx += n;
     }
-
-    return idx > numSamples ? 0 : idx;
+    return idx;
 }
 
+/*
+ * Seeking throws away whatever's left of the block of decoded samples
+ * that readSamples was working through.
+ */
 JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_seek
 	(JNIEnv *env, jclass c, jlong handle, jfloat seconds)
 {
     MP3File *mp3 = (MP3File *)handle;
-    return mpg123_seek(mp3->handle, (int) seconds / mp3->secs_per_frame * mp3->samples_per_frame, SEEK_SET);
+    /* mpg123_seek counts output samples, which are fewer when down sampling */
+    double samples = seconds / mp3->secs_per_frame *
+        (mp3->samples_per_frame >> mp3->down_sample);
+    mp3->leftSamples = 0;
+    mp3->offset = 0;
+    mp3->scan_position = 0;
+    return mpg123_seek(mp3->handle, (off_t)(samples + 0.5), SEEK_SET);
+}
+
+/*
+ * Seeks so that the next sample read is the first of the given frame,
+ * counting frames the way scanAll does.  Returns the frame, or a
+ * negative libmpg123 error.
+ */
+JNIEXPORT jlong JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_seekToFrame
+	(JNIEnv *env, jclass c, jlong handle, jint frame)
+{
+    MP3File *mp3 = (MP3File *)handle;
+    mp3->leftSamples = 0;
+    mp3->offset = 0;
+    mp3->scan_position = 0;
+    return mpg123_seek_frame(mp3->handle, frame, SEEK_SET);
+}
+
+/*
+ * Gives libmpg123 the byte offset of every step-th frame, as found by
+ * an earlier scanAll, so that seeking jumps straight to the closest
+ * frame before the one wanted instead of reading the file from the
+ * start.  off_t is only 32 bits here, so the index stops at the first
+ * frame that's too far into the file to be stored; seeks past it read
+ * forward from there.
+ */
+JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_setIndex
+	(JNIEnv *env, jclass c, jlong handle, jlongArray offsets, jint step)
+{
+    MP3File *mp3 = (MP3File *)handle;
+    jsize count = (*env)->GetArrayLength(env, offsets);
+    const jlong maxOffset = ((jlong)1 << (8 * SIZEOF_OFF_T - 1)) - 1;
+    jlong *longOffsets;
+    off_t *index;
+    jsize fill = 0;
+    int err;
+
+    if (count == 0 || step <= 0)
+        return MPG123_BAD_INDEX_PAR;
+    longOffsets = (*env)->GetLongArrayElements(env, offsets, NULL);
+    index = (off_t*)malloc(count * sizeof(off_t));
+    if (longOffsets == NULL || index == NULL) {
+        if (longOffsets != NULL)
+            (*env)->ReleaseLongArrayElements(env, offsets, longOffsets, JNI_ABORT);
+        free(index);
+        return MPG123_OUT_OF_MEM;
+    }
+    while (fill < count && longOffsets[fill] >= 0 && longOffsets[fill] <= maxOffset) {
+        index[fill] = (off_t)longOffsets[fill];
+        fill++;
+    }
+    (*env)->ReleaseLongArrayElements(env, offsets, longOffsets, JNI_ABORT);
+
+    err = fill > 0 ? mpg123_set_index(mp3->handle, index, step, fill) : MPG123_OK;
+    free(index);
+    return err == MPG123_OK ? MPG123_OK : mpg123_errcode(mp3->handle);
 }
 
 JNIEXPORT float JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getPosition
@@ -283,8 +750,20 @@ JNIEXPORT float JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getPosition
     return mpg123_tellframe(mp3->handle) * mp3->secs_per_frame;
 }
 
+/* Channels in the stream, even if the output is being mixed to mono */
 JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getNumChannels
 	(JNIEnv *env, jclass c, jlong handle)
+{
+    MP3File *mp3 = (MP3File *)handle;
+    return mp3->handle->stereo;
+}
+
+/*
+ * The number of channels in the decoded output, which is 1 when mixing
+ * down to mono even if the stream is stereo.
+ */
+JNIEXPORT jint JNICALL Java_com_ringdroid_soundfile_Mpg123Decoder_getOutputChannels
+	(JNIEnv *env, jclass c, jlong handle)
 {
     MP3File *mp3 = (MP3File *)handle;
     return mp3->channels;
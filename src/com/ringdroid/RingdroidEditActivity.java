@@ -53,6 +53,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.WindowManager;
 import android.widget.AbsoluteLayout;
 import android.widget.Button;
 import android.widget.ImageButton;
@@ -61,6 +62,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.ringdroid.soundfile.CheapSoundFile;
+import com.ringdroid.soundfile.FrameIndex;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -95,6 +97,9 @@ public class RingdroidEditActivity extends Activity
     private long mLoadingStartTime;
     private long mLoadingLastUpdateTime;
     private boolean mLoadingKeepGoing;
+    private volatile boolean mComputingGains;
+    private volatile int mVisibleStartFrame;
+    private volatile int mVisibleEndFrame;
     private ProgressDialog mProgressDialog;
     private CheapSoundFile mSoundFile;
     private File mFile;
@@ -163,6 +168,9 @@ public class RingdroidEditActivity extends Activity
     private static final int REQUEST_CODE_RECORD = 1;
     private static final int REQUEST_CODE_CHOOSE_CONTACT = 2;
 
+    // Disk space for remembering the frames of recently opened files
+    private static final long FRAME_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+
     /**
      * This is a special intent action that means "edit a sound file".
      */
@@ -248,6 +256,10 @@ public class RingdroidEditActivity extends Activity
 
         mHandler = new Handler();
 
+        // Opening a file we've scanned before can skip the scan
+        CheapSoundFile.setCacheDir(new File(getCacheDir(), "frames"),
+                                   FRAME_CACHE_MAX_BYTES);
+
         loadGui();
 
         mHandler.postDelayed(mTimerRunnable, 100);
@@ -266,6 +278,7 @@ public class RingdroidEditActivity extends Activity
             mPlayer.stop();
         }
         mPlayer = null;
+        mComputingGains = false;
 
         if (mRecordingFilename != null) {
             try {
@@ -698,6 +711,10 @@ public class RingdroidEditActivity extends Activity
                     mLoadingKeepGoing = false;
                 }
             });
+        // Don't dim the waveform, it's drawn behind the dialog as the
+        // file loads
+        mProgressDialog.getWindow().clearFlags(
+            WindowManager.LayoutParams.FLAG_DIM_BEHIND);
         mProgressDialog.show();
 
         final CheapSoundFile.ProgressListener listener =
@@ -714,6 +731,38 @@ public class RingdroidEditActivity extends Activity
                 }
             };
 
+        // Show each batch of frames as soon as it's been scanned
+        final CheapSoundFile.FrameListener frameListener =
+            new CheapSoundFile.FrameListener() {
+                public void framesScanned(CheapSoundFile soundFile,
+                                          final int startFrame,
+                                          final int[] gains) {
+                    Runnable runnable = null;
+                    if (startFrame == 0) {
+                        final int sampleRate = soundFile.getSampleRate();
+                        final int samplesPerFrame =
+                            soundFile.getSamplesPerFrame();
+                        final int expectedNumFrames =
+                            estimateNumFrames(soundFile, gains.length);
+                        runnable = new Runnable() {
+                            public void run() {
+                                mWaveformView.startLoading(
+                                    sampleRate, samplesPerFrame,
+                                    expectedNumFrames);
+                                mWaveformView.appendFrames(startFrame, gains);
+                            }
+                        };
+                    } else {
+                        runnable = new Runnable() {
+                            public void run() {
+                                mWaveformView.appendFrames(startFrame, gains);
+                            }
+                        };
+                    }
+                    mHandler.post(runnable);
+                }
+            };
+
         // Create the MediaPlayer in a background thread
         mCanSeekAccurately = false;
         new Thread() {
@@ -747,7 +796,10 @@ public class RingdroidEditActivity extends Activity
             public void run() { 
                 try {
                     mSoundFile = CheapSoundFile.create(mFile.getAbsolutePath(),
-                                                       listener);
+                                                       listener,
+                                                       frameListener,
+                                                       false,
+                                                       true);
 
                     if (mSoundFile == null) {
                         mProgressDialog.dismiss();
@@ -805,6 +857,28 @@ public class RingdroidEditActivity extends Activity
         }.start();
     }
 
+    /**
+     * Guesses how many frames a file that's still being scanned will
+     * have, from how far into the file its first numFramesScanned
+     * frames go.
+     */
+    private static int estimateNumFrames(CheapSoundFile soundFile,
+                                         int numFramesScanned) {
+        int numFrames = soundFile.getNumFrames();
+        FrameIndex frames = soundFile.getFrameIndex();
+        if (numFrames > numFramesScanned || numFramesScanned == 0) {
+            return numFrames;
+        }
+        long bytesScanned =
+            frames.getOffset(numFramesScanned - 1) +
+            frames.getLen(numFramesScanned - 1);
+        if (bytesScanned <= 0) {
+            return numFrames;
+        }
+        return (int)(numFramesScanned * soundFile.getFileSizeBytes() /
+                     bytesScanned);
+    }
+
     private void finishOpeningSoundFile() {
         mWaveformView.setSoundFile(mSoundFile);
         mWaveformView.recomputeHeights(mDensity);
@@ -831,6 +905,59 @@ public class RingdroidEditActivity extends Activity
         mInfo.setText(mCaption);
 
         updateDisplay();
+
+        if (!mSoundFile.hasAllGains()) {
+            computeGainsInBackground();
+        }
+    }
+
+    /**
+     * For a sound file that was opened without computing its gains,
+     * computes them in a low priority thread, a chunk at a time, doing
+     * whatever part of the waveform is on screen first.
+     */
+    private void computeGainsInBackground() {
+        final CheapSoundFile soundFile = mSoundFile;
+        mComputingGains = true;
+        new Thread() {
+            public void run() {
+                android.os.Process.setThreadPriority(
+                    android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                int nextFrame = 0;
+                while (mComputingGains) {
+                    int startFrame = soundFile.nextFrameWithoutGain(
+                        mVisibleStartFrame);
+                    if (startFrame >= mVisibleEndFrame ||
+                        startFrame < mVisibleStartFrame) {
+                        startFrame = soundFile.nextFrameWithoutGain(
+                            nextFrame);
+                    }
+                    if (startFrame < 0) {
+                        break;
+                    }
+                    final int chunkStart = startFrame;
+                    final int chunkEnd =
+                        startFrame + CheapSoundFile.GAIN_CHUNK_FRAMES;
+                    try {
+                        soundFile.computeGains(chunkStart, chunkEnd);
+                    } catch (final Exception e) {
+                        Log.e("Ringdroid", "Error computing gains", e);
+                        break;
+                    }
+                    if (chunkStart >= nextFrame) {
+                        nextFrame = chunkEnd;
+                    }
+                    mHandler.post(new Runnable() {
+                            public void run() {
+                                if (mSoundFile == soundFile) {
+                                    mWaveformView.gainsComputed(
+                                        chunkStart, chunkEnd);
+                                }
+                            }
+                        });
+                }
+            }
+        }.start();
     }
 
     private synchronized void updateDisplay() {
@@ -890,6 +1017,8 @@ public class RingdroidEditActivity extends Activity
 
         mWaveformView.setParameters(mStartPos, mEndPos, mOffset);
         mWaveformView.invalidate();
+        mVisibleStartFrame = mWaveformView.pixelsToFrames(mOffset);
+        mVisibleEndFrame = mWaveformView.pixelsToFrames(mOffset + mWidth) + 1;
 
         mStartMarker.setContentDescription(
             getResources().getText(R.string.start_marker) + " " +
@@ -1091,8 +1220,8 @@ public class RingdroidEditActivity extends Activity
                 mPlayStartMsec * 0.001);
             int endFrame = mWaveformView.secondsToFrames(
                 mPlayEndMsec * 0.001);
-            int startByte = mSoundFile.getSeekableFrameOffset(startFrame);
-            int endByte = mSoundFile.getSeekableFrameOffset(endFrame);
+            long startByte = mSoundFile.getSeekableFrameOffset(startFrame);
+            long endByte = mSoundFile.getSeekableFrameOffset(endFrame);
             if (mCanSeekAccurately && startByte >= 0 && endByte >= 0) {
                 try {
                     mPlayer.reset();
@@ -1262,18 +1391,12 @@ public class RingdroidEditActivity extends Activity
                                          startFrame,
                                          endFrame - startFrame);
 
-                    // Try to load the new file to make sure it worked
-                    final CheapSoundFile.ProgressListener listener =
-                        new CheapSoundFile.ProgressListener() {
-                            public boolean reportProgress(double frac) {
-                                // Do nothing - we're not going to try to
-                                // estimate when reloading a saved sound
-                                // since it's usually fast, but hard to
-                                // estimate anyway.
-                                return true;  // Keep going
-                            }
-                        };
-                    CheapSoundFile.create(outPath, listener);
+                    // Make sure it worked.  This checks the new file
+                    // against the frames we copied instead of scanning
+                    // it again.
+                    mSoundFile.createSlice(outFile,
+                                           startFrame,
+                                           endFrame - startFrame);
                 } catch (Exception e) {
                     mProgressDialog.dismiss();
 
@@ -27,6 +27,7 @@ import android.view.MotionEvent;
 import android.view.View;
 
 import com.ringdroid.soundfile.CheapSoundFile;
+import com.ringdroid.soundfile.FrameIndex;
 
 import java.util.Map;
 
@@ -78,6 +79,17 @@ public class WaveformView extends View {
     private WaveformListener mListener;
     private GestureDetector mGestureDetector;
     private boolean mInitialized;
+    private double mScaleFactor;
+    private double mMinGain;
+    private double mRange;
+
+    // The gains received so far for a file that's still loading, or of
+    // every frame of a file whose gains are still being computed (0 for
+    // those that aren't yet), how many frames have them, and how many
+    // of those the calibration above was computed from.
+    private int[] mLoadingGains;
+    private int mNumLoadingFrames;
+    private int mNumCalibratedFrames;
 
     public WaveformView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -166,12 +178,111 @@ public class WaveformView extends View {
 
     public void setSoundFile(CheapSoundFile soundFile) {
         mSoundFile = soundFile;
+        mLoadingGains = null;
         mSampleRate = mSoundFile.getSampleRate();
         mSamplesPerFrame = mSoundFile.getSamplesPerFrame();
         computeDoublesForAllZoomLevels();
         mHeightsAtThisZoomLevel = null;
     }
 
+    /**
+     * Starts drawing a sound file that's still being loaded, at the zoom
+     * level setSoundFile would pick for expectedNumFrames frames.  Its
+     * frames are passed to appendFrames as they're scanned, and once
+     * it's loaded setSoundFile is called as usual, which recomputes
+     * everything from the complete file.
+     */
+    public void startLoading(int sampleRate, int samplesPerFrame,
+                             int expectedNumFrames) {
+        mSoundFile = null;
+        mSampleRate = sampleRate;
+        mSamplesPerFrame = samplesPerFrame;
+        mLoadingGains = new int[1024];
+        mNumLoadingFrames = 0;
+        mNumCalibratedFrames = 0;
+        allocateZoomLevels(mLoadingGains.length);
+        mZoomLevel = defaultZoomLevel(expectedNumFrames);
+        mHeightsAtThisZoomLevel = null;
+        invalidate();
+    }
+
+    /**
+     * Adds the gains of frames [startFrame, startFrame + gains.length)
+     * of the file passed to startLoading.  The new frames are drawn
+     * with the calibration from the frames so far, which is redone each
+     * time the number of frames doubles, so the whole load costs about
+     * as much as computing the heights once.
+     */
+    public void appendFrames(int startFrame, int[] gains) {
+        if (mSoundFile != null || mLoadingGains == null ||
+            startFrame != mNumLoadingFrames) {
+            return;
+        }
+        int oldNumFrames = mNumLoadingFrames;
+        int numFrames = oldNumFrames + gains.length;
+        if (numFrames > mLoadingGains.length) {
+            int[] newGains = new int[Math.max(numFrames,
+                                              2 * mLoadingGains.length)];
+            System.arraycopy(mLoadingGains, 0, newGains, 0, oldNumFrames);
+            mLoadingGains = newGains;
+        }
+        System.arraycopy(gains, 0, mLoadingGains, oldNumFrames, gains.length);
+        mNumLoadingFrames = numFrames;
+
+        if (oldNumFrames <= 2 || numFrames >= 2 * mNumCalibratedFrames) {
+            calibrate(mLoadingGains, numFrames);
+            mNumCalibratedFrames = numFrames;
+            computeHeights(mLoadingGains, numFrames, 0, numFrames);
+        } else {
+            // The old last frame is smoothed differently now that it
+            // has a frame after it.
+            computeHeights(mLoadingGains, numFrames,
+                           oldNumFrames - 1, numFrames);
+        }
+        mHeightsAtThisZoomLevel = null;
+        invalidate();
+    }
+
+    /**
+     * Called once the gains of frames [startFrame, endFrame) of a sound
+     * file that didn't have all of its gains have been computed.  Like
+     * appendFrames, the calibration is redone each time the number of
+     * frames with gains doubles, and once every frame has its gain the
+     * heights come out the same as if they'd all been there from the
+     * start.
+     */
+    public void gainsComputed(int startFrame, int endFrame) {
+        if (mSoundFile == null || mLoadingGains == null) {
+            return;
+        }
+        int numFrames = mSoundFile.getNumFrames();
+        FrameIndex frames = mSoundFile.getFrameIndex();
+        if (endFrame > numFrames) {
+            endFrame = numFrames;
+        }
+        if (mSoundFile.hasAllGains()) {
+            mLoadingGains = null;
+            int[] gains = frames.getGains();
+            calibrate(gains, numFrames);
+            computeHeights(gains, numFrames, 0, numFrames);
+        } else {
+            for (int i = startFrame; i < endFrame; i++) {
+                mLoadingGains[i] = frames.getGain(i);
+            }
+            mNumLoadingFrames += endFrame - startFrame;
+            if (mNumLoadingFrames >= 2 * mNumCalibratedFrames) {
+                calibrateKnownFrames();
+            } else {
+                // The frames on either side are smoothed with these
+                computeHeights(mLoadingGains, numFrames,
+                               Math.max(startFrame - 1, 0),
+                               Math.min(endFrame + 1, numFrames));
+            }
+        }
+        mHeightsAtThisZoomLevel = null;
+        invalidate();
+    }
+
     public boolean isInitialized() {
         return mInitialized;
     }
@@ -231,6 +342,10 @@ public class WaveformView extends View {
         return mLenByZoomLevel[mZoomLevel];
     }
 
+    public int pixelsToFrames(int pixels) {
+        return (int)(pixels / mZoomFactorByZoomLevel[mZoomLevel]);
+    }
+
     public int secondsToFrames(double seconds) {
         return (int)(1.0 * seconds * mSampleRate / mSamplesPerFrame + 0.5);
     }
@@ -300,7 +415,7 @@ public class WaveformView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (mSoundFile == null)
+        if (mSoundFile == null && mLoadingGains == null)
             return;
 
         if (mHeightsAtThisZoomLevel == null)
@@ -421,26 +536,91 @@ public class WaveformView extends View {
      */
     private void computeDoublesForAllZoomLevels() {
         int numFrames = mSoundFile.getNumFrames();
-        int[] frameGains = mSoundFile.getFrameGains();
-        double[] smoothedGains = new double[numFrames];
-        if (numFrames == 1) {
-            smoothedGains[0] = frameGains[0];
-        } else if (numFrames == 2) {
-            smoothedGains[0] = frameGains[0];
-            smoothedGains[1] = frameGains[1];
-        } else if (numFrames > 2) {
-            smoothedGains[0] = (double)(
-                (frameGains[0] / 2.0) +
-                (frameGains[1] / 2.0));
-            for (int i = 1; i < numFrames - 1; i++) {
-                smoothedGains[i] = (double)(
-                    (frameGains[i - 1] / 3.0) +
-                    (frameGains[i    ] / 3.0) +
-                    (frameGains[i + 1] / 3.0));
+        int[] gains = mSoundFile.getFrameIndex().getGains();
+
+        allocateZoomLevels(numFrames);
+        if (mSoundFile.hasAllGains()) {
+            calibrate(gains, numFrames);
+            computeHeights(gains, numFrames, 0, numFrames);
+        } else {
+            int chunkFrames = CheapSoundFile.GAIN_CHUNK_FRAMES;
+            mLoadingGains = gains;
+            mNumLoadingFrames = 0;
+            for (int i = 0; i < numFrames; i += chunkFrames) {
+                if (mSoundFile.hasGains(i, i + chunkFrames)) {
+                    mNumLoadingFrames += Math.min(chunkFrames, numFrames - i);
+                }
             }
-            smoothedGains[numFrames - 1] = (double)(
-                (frameGains[numFrames - 2] / 2.0) +
-                (frameGains[numFrames - 1] / 2.0));
+            calibrateKnownFrames();
+        }
+        mZoomLevel = defaultZoomLevel(numFrames);
+
+        mInitialized = true;
+    }
+
+    /**
+     * Calibrates from just the frames of mSoundFile that have their
+     * gains, then recomputes every height; frames without gains come
+     * out flat.
+     */
+    private void calibrateKnownFrames() {
+        int numFrames = mSoundFile.getNumFrames();
+        int chunkFrames = CheapSoundFile.GAIN_CHUNK_FRAMES;
+        int[] knownGains = new int[mNumLoadingFrames];
+        int numKnownFrames = 0;
+        for (int i = 0; i < numFrames; i += chunkFrames) {
+            int len = Math.min(chunkFrames, numFrames - i);
+            if (numKnownFrames + len <= knownGains.length &&
+                mSoundFile.hasGains(i, i + len)) {
+                System.arraycopy(mLoadingGains, i,
+                                 knownGains, numKnownFrames, len);
+                numKnownFrames += len;
+            }
+        }
+        calibrate(knownGains, numKnownFrames);
+        mNumCalibratedFrames = numKnownFrames;
+        computeHeights(mLoadingGains, numFrames, 0, numFrames);
+    }
+
+    private static int defaultZoomLevel(int numFrames) {
+        if (numFrames > 5000) {
+            return 3;
+        } else if (numFrames > 1000) {
+            return 2;
+        } else if (numFrames > 300) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+
+    private static double smoothedGain(int[] gains, int numFrames, int i) {
+        if (numFrames <= 2) {
+            return gains[i];
+        } else if (i == 0) {
+            return (double)(
+                (gains[0] / 2.0) +
+                (gains[1] / 2.0));
+        } else if (i == numFrames - 1) {
+            return (double)(
+                (gains[numFrames - 2] / 2.0) +
+                (gains[numFrames - 1] / 2.0));
+        } else {
+            return (double)(
+                (gains[i - 1] / 3.0) +
+                (gains[i    ] / 3.0) +
+                (gains[i + 1] / 3.0));
+        }
+    }
+
+    /**
+     * Picks the scale factor and the gains that map to the bottom and
+     * top of the view, from the first numFrames gains.
+     */
+    private void calibrate(int[] gains, int numFrames) {
+        double[] smoothedGains = new double[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            smoothedGains[i] = smoothedGain(gains, numFrames, i);
         }
 
         // Make sure the range is no more than 0 - 255
@@ -486,67 +666,93 @@ public class WaveformView extends View {
             maxGain--;
         }
 
-        // Compute the heights
-        double[] heights = new double[numFrames];
-        double range = maxGain - minGain;
-        for (int i = 0; i < numFrames; i++) {
-            double value = (smoothedGains[i] * scaleFactor - minGain) / range;
-            if (value < 0.0)
-                value = 0.0;
-            if (value > 1.0)
-                value = 1.0;
-            heights[i] = value * value;
-        }
+        mScaleFactor = scaleFactor;
+        mMinGain = minGain;
+        mRange = maxGain - minGain;
+    }
 
+    private void allocateZoomLevels(int capacity) {
         mNumZoomLevels = 5;
         mLenByZoomLevel = new int[5];
         mZoomFactorByZoomLevel = new double[5];
         mValuesByZoomLevel = new double[5][];
 
         // Level 0 is doubled, with interpolated values
-        mLenByZoomLevel[0] = numFrames * 2;
         mZoomFactorByZoomLevel[0] = 2.0;
-        mValuesByZoomLevel[0] = new double[mLenByZoomLevel[0]];
-        if (numFrames > 0) {
-            mValuesByZoomLevel[0][0] = 0.5 * heights[0];
-            mValuesByZoomLevel[0][1] = heights[0];
+        mValuesByZoomLevel[0] = new double[capacity * 2];
+
+        // Level 1 is normal
+        mZoomFactorByZoomLevel[1] = 1.0;
+        mValuesByZoomLevel[1] = new double[capacity];
+
+        // 3 more levels are each halved
+        for (int j = 2; j < 5; j++) {
+            mZoomFactorByZoomLevel[j] = mZoomFactorByZoomLevel[j - 1] / 2.0;
+            mValuesByZoomLevel[j] = new double[capacity >> (j - 1)];
         }
-        for (int i = 1; i < numFrames; i++) {
-            mValuesByZoomLevel[0][2 * i] = 0.5 * (heights[i - 1] + heights[i]);
-            mValuesByZoomLevel[0][2 * i + 1] = heights[i];
+    }
+
+    /**
+     * Computes the values of every zoom level for frames [firstFrame,
+     * endFrame) of numFrames, using the current calibration.  The values
+     * for other frames are left alone.
+     */
+    private void computeHeights(int[] gains, int numFrames,
+                                int firstFrame, int endFrame) {
+        if (mValuesByZoomLevel[1].length < numFrames) {
+            growZoomLevels(Math.max(numFrames,
+                                    2 * mValuesByZoomLevel[1].length));
         }
 
-        // Level 1 is normal
+        // Level 1 is the height of each frame
+        double[] heights = mValuesByZoomLevel[1];
+        for (int i = firstFrame; i < endFrame; i++) {
+            double value = (smoothedGain(gains, numFrames, i) *
+                            mScaleFactor - mMinGain) / mRange;
+            if (value < 0.0)
+                value = 0.0;
+            if (value > 1.0)
+                value = 1.0;
+            heights[i] = value * value;
+        }
         mLenByZoomLevel[1] = numFrames;
-        mValuesByZoomLevel[1] = new double[mLenByZoomLevel[1]];
-        mZoomFactorByZoomLevel[1] = 1.0;
-        for (int i = 0; i < mLenByZoomLevel[1]; i++) {
-            mValuesByZoomLevel[1][i] = heights[i];
+
+        // Level 0 is doubled, with interpolated values, so the frame
+        // after endFrame changes too
+        mLenByZoomLevel[0] = numFrames * 2;
+        for (int i = firstFrame; i < Math.min(endFrame + 1, numFrames); i++) {
+            if (i == 0) {
+                mValuesByZoomLevel[0][0] = 0.5 * heights[0];
+            } else {
+                mValuesByZoomLevel[0][2 * i] =
+                    0.5 * (heights[i - 1] + heights[i]);
+            }
+            mValuesByZoomLevel[0][2 * i + 1] = heights[i];
         }
 
         // 3 more levels are each halved
+        int first = firstFrame;
+        int end = endFrame;
         for (int j = 2; j < 5; j++) {
+            first /= 2;
+            end = (end + 1) / 2;
             mLenByZoomLevel[j] = mLenByZoomLevel[j - 1] / 2;
-            mValuesByZoomLevel[j] = new double[mLenByZoomLevel[j]];
-            mZoomFactorByZoomLevel[j] = mZoomFactorByZoomLevel[j - 1] / 2.0;
-            for (int i = 0; i < mLenByZoomLevel[j]; i++) {
+            for (int i = first; i < Math.min(end, mLenByZoomLevel[j]); i++) {
                 mValuesByZoomLevel[j][i] =
                     0.5 * (mValuesByZoomLevel[j - 1][2 * i] +
                            mValuesByZoomLevel[j - 1][2 * i + 1]);
             }
         }
+    }
 
-        if (numFrames > 5000) {
-            mZoomLevel = 3;
-        } else if (numFrames > 1000) {
-            mZoomLevel = 2;
-        } else if (numFrames > 300) {
-            mZoomLevel = 1;
-        } else {
-            mZoomLevel = 0;
+    private void growZoomLevels(int capacity) {
+        for (int j = 0; j < 5; j++) {
+            int len = (j == 0) ? capacity * 2 : capacity >> (j - 1);
+            double[] values = new double[len];
+            System.arraycopy(mValuesByZoomLevel[j], 0, values, 0,
+                             mLenByZoomLevel[j]);
+            mValuesByZoomLevel[j] = values;
         }
-
-        mInitialized = true;
     }
 
     /**
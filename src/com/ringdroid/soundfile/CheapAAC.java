@@ -16,10 +16,13 @@
 
 package com.ringdroid.soundfile;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import java.util.HashMap;
 
@@ -42,11 +45,12 @@ public class CheapAAC extends CheapSoundFile {
     }
 
     class Atom {
-        public int start;
-        public int len;  // including header
+        public long start;
+        public int len;  // including header; not kept for huge atoms
         public byte[] data;
     };
 
+    public static final int kCO64 = 0x636f3634;
     public static final int kDINF = 0x64696e66;
     public static final int kFTYP = 0x66747970;
     public static final int kHDLR = 0x68646c72;
@@ -96,10 +100,8 @@ public class CheapAAC extends CheapSoundFile {
 
     // Member variables containing frame info
     private int mNumFrames;
-    private int[] mFrameOffsets;
-    private int[] mFrameLens;
-    private int[] mFrameGains;
-    private int mFileSize;
+    private FrameIndex mFrames;
+    private long mFileSize;
     private HashMap<Integer, Atom> mAtomMap;
 
     // Member variables containing sound file info
@@ -109,11 +111,9 @@ public class CheapAAC extends CheapSoundFile {
     private int mSamplesPerFrame;
 
     // Member variables used only while initially parsing the file
-    private int mOffset;
-    private int mMinGain;
-    private int mMaxGain;
-    private int mMdatOffset;
-    private int mMdatLength;
+    private long mMdatOffset;
+    private HashMap<Integer, Atom> mFirstTrak;
+    private HashMap<Integer, Atom> mSoundTrak;
 
     public CheapAAC() {
     }
@@ -122,28 +122,32 @@ public class CheapAAC extends CheapSoundFile {
         return mNumFrames;
     }
 
+    public FrameIndex getFrameIndex() {
+        return mFrames;
+    }
+
     public int getSamplesPerFrame() {
         return mSamplesPerFrame;
     }
 
-    public int[] getFrameOffsets() {
-        return mFrameOffsets;
+    public long[] getFrameOffsets() {
+        return mFrames.getOffsets();
     }
 
     public int[] getFrameLens() {
-        return mFrameLens;
+        return mFrames.getLens();
     }
 
     public int[] getFrameGains() {
-        return mFrameGains;
+        return mFrames.getGains();
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return mFileSize;        
     }
 
     public int getAvgBitrateKbps() {
-        return mFileSize / (mNumFrames * mSamplesPerFrame);
+        return (int)(mFileSize / (mNumFrames * mSamplesPerFrame));
     }
 
     public int getSampleRate() {
@@ -168,6 +172,23 @@ public class CheapAAC extends CheapSoundFile {
     }
 
     public void ReadFile(File inputFile)
+        throws java.io.FileNotFoundException,
+               java.io.IOException {
+        readFile(inputFile, true);
+    }
+
+    /**
+     * The sample tables have the offset and length of every frame, so
+     * the frames can be laid out without reading any of them.
+     */
+    public void ReadFrameIndex(File inputFile)
+        throws java.io.FileNotFoundException,
+               java.io.IOException {
+        readFile(inputFile, false);
+        deferGains();
+    }
+
+    private void readFile(File inputFile, boolean computeGains)
         throws java.io.FileNotFoundException,
                java.io.IOException {
         super.ReadFile(inputFile);
@@ -176,16 +197,14 @@ public class CheapAAC extends CheapSoundFile {
         mBitrate = 0;
         mSamplesPerFrame = 0;
         mNumFrames = 0;
-        mMinGain = 255;
-        mMaxGain = 0;
-        mOffset = 0;
+        mFrames = new FrameIndex();
         mMdatOffset = -1;
-        mMdatLength = -1;
+        mFirstTrak = null;
+        mSoundTrak = null;
 
         mAtomMap = new HashMap<Integer, Atom>();
 
-        // No need to handle filesizes larger than can fit in a 32-bit int
-        mFileSize = (int)mInputFile.length();
+        mFileSize = mInputFile.length();
 
         /*System.out.println("File size = " + mFileSize);*/
 
@@ -193,181 +212,340 @@ public class CheapAAC extends CheapSoundFile {
             throw new java.io.IOException("File too small to parse");
         }
 
-        // Read the first 8 bytes
+        // Everything is read with positional reads on one channel, so
+        // the moov atom can be anywhere in the file, and mdat is only
+        // read a frame at a time when we need its gain.
         FileInputStream stream = new FileInputStream(mInputFile);
-        byte[] header = new byte[8];
-        stream.read(header, 0, 8);
-
-        if (header[0] == 0 &&
-            header[4] == 'f' &&
-            header[5] == 't' &&
-            header[6] == 'y' &&
-            header[7] == 'p') {
-            // Create a new stream, reset to the beginning of the file
-            stream = new FileInputStream(mInputFile);
-            parseMp4(stream, mFileSize);
-        } else {
-            throw new java.io.IOException("Unknown file format");
-        }
+        try {
+            FileChannel channel = stream.getChannel();
+            byte[] header = new byte[8];
+            readFully(channel, 0, header, 8);
+
+            if (header[0] == 0 &&
+                header[4] == 'f' &&
+                header[5] == 't' &&
+                header[6] == 'y' &&
+                header[7] == 'p') {
+                parseMp4(channel, 0, mFileSize, mAtomMap);
+            } else {
+                throw new java.io.IOException("Unknown file format");
+            }
 
-        if (mMdatOffset > 0 && mMdatLength > 0) {
-            stream = new FileInputStream(mInputFile);
-            stream.skip(mMdatOffset);
-            mOffset = mMdatOffset;
-            parseMdat(stream, mMdatLength);
-        } else {
-            throw new java.io.IOException("Didn't find mdat");
+            // Play the first sound track, or if we can't tell which
+            // track is sound, the first track
+            HashMap<Integer, Atom> trak =
+                (mSoundTrak != null) ? mSoundTrak : mFirstTrak;
+            if (trak != null) {
+                mAtomMap.putAll(trak);
+            }
+            mFirstTrak = null;
+            mSoundTrak = null;
+
+            /*
+            System.out.println("Atoms found:");
+            for (int atomType : mAtomMap.keySet()) {
+                System.out.println("    " + atomToString(atomType));
+                }*/
+
+            for (int requiredAtomType : kRequiredAtoms) {
+                if (!mAtomMap.containsKey(requiredAtomType)) {
+                    throw new java.io.IOException(
+                        "Could not parse MP4 file, missing atom: " +
+                        atomToString(requiredAtomType));
+                }
+            }
+
+            parseMp4aFromStsd();
+            parseSampleTables();
+            if (computeGains) {
+                scanAllGains(channel);
+            }
+        } finally {
+            stream.close();
         }
 
         /*
         for (int i = 0; i < mNumFrames; i++) {
-            System.out.println("Gain " + i + ": " + mFrameGains[i]);
+            System.out.println("Gain " + i + ": " + mFrames.getGain(i));
             }*/
+    }
 
-        /*
-        System.out.println("Atoms found:");
+    void writeCache(DataOutputStream out)
+            throws java.io.IOException {
+        out.writeLong(mFileSize);
+        out.writeInt(mBitrate);
+        out.writeInt(mSampleRate);
+        out.writeInt(mChannels);
+        out.writeInt(mSamplesPerFrame);
+        out.writeInt(mNumFrames);
+        out.writeInt(mAtomMap.size());
         for (int atomType : mAtomMap.keySet()) {
-            System.out.println("    " + atomToString(atomType));
-            }*/
-
-        boolean bad = false;
-        for (int requiredAtomType : kRequiredAtoms) {
-            if (!mAtomMap.containsKey(requiredAtomType)) {
-                System.out.println("Missing atom: " +
-                                   atomToString(requiredAtomType));
-                bad = true;
+            Atom atom = mAtomMap.get(atomType);
+            out.writeInt(atomType);
+            out.writeLong(atom.start);
+            out.writeInt(atom.len);
+            if (atom.data == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(atom.data.length);
+                out.write(atom.data);
             }
         }
+        mFrames.write(out);
+    }
 
-        if (bad) {
-            throw new java.io.IOException("Could not parse MP4 file");
+    void readCache(DataInputStream in)
+            throws java.io.IOException {
+        mFileSize = in.readLong();
+        mBitrate = in.readInt();
+        mSampleRate = in.readInt();
+        mChannels = in.readInt();
+        mSamplesPerFrame = in.readInt();
+        mNumFrames = in.readInt();
+        mAtomMap = new HashMap<Integer, Atom>();
+        int numAtoms = in.readInt();
+        for (int i = 0; i < numAtoms; i++) {
+            int atomType = in.readInt();
+            Atom atom = new Atom();
+            atom.start = in.readLong();
+            atom.len = in.readInt();
+            int dataLen = in.readInt();
+            if (dataLen > in.available()) {
+                throw new java.io.IOException("Bad atom length");
+            }
+            if (dataLen >= 0) {
+                atom.data = new byte[dataLen];
+                in.readFully(atom.data);
+            }
+            mAtomMap.put(atomType, atom);
         }
+        mFrames = FrameIndex.read(in);
     }
 
-    private void parseMp4(InputStream stream, int maxLen)
+    /**
+     * Reads the headers of the atoms in [start, end) of the file, and
+     * adds them to atoms.  Goes into the atoms that lead to the sample
+     * tables, and reads the data of the atoms we need; everything else,
+     * mdat included, is skipped without being read.  The atoms of each
+     * trak go into a map of their own, since a file can have several.
+     */
+    private void parseMp4(FileChannel channel, long start, long end,
+                          HashMap<Integer, Atom> atoms)
             throws java.io.IOException {
-        /*System.out.println("parseMp4 maxLen = " + maxLen);*/
-
-        while (maxLen > 8) {
-            int initialOffset = mOffset;
-
-            byte[] atomHeader = new byte[8];
-            stream.read(atomHeader, 0, 8);
-            int atomLen =
-                ((0xff & atomHeader[0]) << 24) |
-                ((0xff & atomHeader[1]) << 16) |
-                ((0xff & atomHeader[2]) << 8) |
-                ((0xff & atomHeader[3]));
-            /*System.out.println("atomType = " +
-                               (char)atomHeader[4] +
-                               (char)atomHeader[5] +
-                               (char)atomHeader[6] +
-                               (char)atomHeader[7] +
-                               "  " +
-                               "offset = " + mOffset +
-                               "  " +
-                               "atomLen = " + atomLen);*/
-            if (atomLen > maxLen)
-                atomLen = maxLen;
-            int atomType = 
-                ((0xff & atomHeader[4]) << 24) |
-                ((0xff & atomHeader[5]) << 16) |
-                ((0xff & atomHeader[6]) << 8) |
-                ((0xff & atomHeader[7]));
+        /*System.out.println("parseMp4 " + start + " - " + end);*/
 
-            Atom atom = new Atom();
-            atom.start = mOffset;
-            atom.len = atomLen;
-            mAtomMap.put(atomType, atom);
+        byte[] atomHeader = new byte[16];
+        long offset = start;
+        while (end - offset >= 8) {
+            if (readFully(channel, offset, atomHeader, 8) < 8) {
+                break;
+            }
+            long atomLen = 0xffffffffL & getInt(atomHeader, 0);
+            int atomType = getInt(atomHeader, 4);
+            int headerLen = 8;
+            if (atomLen == 1) {
+                // A 64-bit "largesize" follows the type
+                if (readFully(channel, offset + 8, atomHeader, 8) < 8) {
+                    break;
+                }
+                atomLen =
+                    ((0xffffffffL & getInt(atomHeader, 0)) << 32) |
+                    (0xffffffffL & getInt(atomHeader, 4));
+                headerLen = 16;
+            } else if (atomLen == 0) {
+                // The atom runs to the end of the one it's in
+                atomLen = end - offset;
+            }
+            /*System.out.println("atomType = " + atomToString(atomType) +
+                               "  offset = " + offset +
+                               "  atomLen = " + atomLen);*/
+            if (atomLen < headerLen) {
+                throw new java.io.IOException(
+                    "Bad length for atom " + atomToString(atomType));
+            }
+            if (atomLen > end - offset) {
+                atomLen = end - offset;
+            }
 
-            mOffset += 8;
-
-            if (atomType == kMOOV ||
-                atomType == kTRAK ||
-                atomType == kMDIA ||
-                atomType == kMINF ||
-                atomType == kSTBL) {
-                parseMp4(stream, atomLen);
-            } else if (atomType == kSTSZ) {
-                parseStsz(stream, atomLen - 8);
-            } else if (atomType == kSTTS) {
-                parseStts(stream, atomLen - 8);
-            } else if (atomType == kMDAT) {
-                mMdatOffset = mOffset;
-                mMdatLength = atomLen - 8;
+            Atom atom = new Atom();
+            atom.start = offset;
+            atom.len = (int)Math.min(atomLen, Integer.MAX_VALUE);
+            long dataStart = offset + headerLen;
+            long dataEnd = offset + atomLen;
+
+            if (atomType == kTRAK) {
+                HashMap<Integer, Atom> trak = new HashMap<Integer, Atom>();
+                trak.put(kTRAK, atom);
+                parseMp4(channel, dataStart, dataEnd, trak);
+                if (mFirstTrak == null) {
+                    mFirstTrak = trak;
+                }
+                if (mSoundTrak == null && trak.containsKey(kSMHD)) {
+                    mSoundTrak = trak;
+                }
             } else {
-                for (int savedAtomType : kSaveDataAtoms) {
-                    if (savedAtomType == atomType) {
-                        byte[] data = new byte[atomLen - 8];
-                        stream.read(data, 0, atomLen - 8);
-                        mOffset += atomLen - 8;
-                        mAtomMap.get(atomType).data = data;
+                atoms.put(atomType, atom);
+                if (atomType == kMOOV ||
+                    atomType == kMDIA ||
+                    atomType == kMINF ||
+                    atomType == kSTBL) {
+                    parseMp4(channel, dataStart, dataEnd, atoms);
+                } else if (atomType == kMDAT) {
+                    if (mMdatOffset < 0) {
+                        mMdatOffset = dataStart;
+                    }
+                } else if (isSaveDataAtom(atomType) ||
+                           isSampleTableAtom(atomType)) {
+                    if (dataEnd - dataStart > Integer.MAX_VALUE) {
+                        throw new java.io.IOException(
+                            "Atom " + atomToString(atomType) +
+                            " is too big");
+                    }
+                    byte[] data = new byte[(int)(dataEnd - dataStart)];
+                    readFully(channel, dataStart, data, data.length);
+                    atom.data = data;
+                    if (isSaveDataAtom(atomType)) {
+                        atom.len = data.length + 8;
                     }
                 }
             }
 
-            if (atomType == kSTSD) {
-                parseMp4aFromStsd();
-            }
-
-            maxLen -= atomLen;
-            int skipLen = atomLen - (mOffset - initialOffset);
-            /*System.out.println("* atomLen: " + atomLen);*/
-            /*System.out.println("* mOffset: " + mOffset);*/
-            /*System.out.println("* initialOffset: " + initialOffset);*/
-            /*System.out.println("*   diff: " + (mOffset - initialOffset));*/
-            /*System.out.println("* skipLen: " + skipLen);*/
+            offset += atomLen;
+        }
+    }
 
-            if (skipLen < 0) {
-                throw new java.io.IOException(
-                    "Went over by " + (-skipLen) + " bytes");
+    private static boolean isSaveDataAtom(int atomType) {
+        for (int savedAtomType : kSaveDataAtoms) {
+            if (savedAtomType == atomType) {
+                return true;
             }
-                               
-            stream.skip(skipLen);
-            mOffset += skipLen;
         }
+        return false;
     }
 
-    void parseStts(InputStream stream, int maxLen)
-        throws java.io.IOException {
-        byte[] sttsData = new byte[16];
-        stream.read(sttsData, 0, 16);
-        mOffset += 16;
-        mSamplesPerFrame =
-            ((0xff & sttsData[12]) << 24) |
-            ((0xff & sttsData[13]) << 16) |
-            ((0xff & sttsData[14]) << 8) |
-            ((0xff & sttsData[15]));
+    private static boolean isSampleTableAtom(int atomType) {
+        return (atomType == kSTSZ ||
+                atomType == kSTTS ||
+                atomType == kSTSC ||
+                atomType == kSTCO ||
+                atomType == kCO64);
+    }
 
+    /**
+     * Works out where every frame is from the sample tables: stsz has
+     * the length of every frame, stco or co64 the offset of every chunk
+     * of frames, and stsc how many frames are in each chunk, so frames
+     * of other tracks interleaved with ours are skipped over.  A file
+     * without chunk offsets is taken to have all its frames one after
+     * another at the start of mdat.  The tables aren't kept, since
+     * writeHeader makes new ones for the frames it writes.
+     */
+    private void parseSampleTables()
+            throws java.io.IOException {
+        byte[] stts = getAtomData(kSTTS);
+        if (stts != null && stts.length >= 16) {
+            mSamplesPerFrame = getInt(stts, 12);
+        }
         /*System.out.println("STTS samples per frame: " + mSamplesPerFrame);*/
-    }
 
-    void parseStsz(InputStream stream, int maxLen)
-        throws java.io.IOException {
-        byte[] stszHeader = new byte[12];
-        stream.read(stszHeader, 0, 12);
-        mOffset += 12;
-        mNumFrames =
-            ((0xff & stszHeader[8]) << 24) |
-            ((0xff & stszHeader[9]) << 16) |
-            ((0xff & stszHeader[10]) << 8) |
-            ((0xff & stszHeader[11]));
+        byte[] stsz = getAtomData(kSTSZ);
+        if (stsz == null || stsz.length < 12) {
+            throw new java.io.IOException("Bad stsz atom");
+        }
+        int frameLen = getInt(stsz, 4);
+        mNumFrames = getInt(stsz, 8);
+        if (mNumFrames < 0 ||
+            (frameLen == 0 && mNumFrames > (stsz.length - 12) / 4)) {
+            throw new java.io.IOException("Bad stsz atom");
+        }
         /*System.out.println("mNumFrames = " + mNumFrames);*/
 
-        mFrameOffsets = new int[mNumFrames];
-        mFrameLens = new int[mNumFrames];
-        mFrameGains = new int[mNumFrames];
-        byte[] frameLenBytes = new byte[4 * mNumFrames];
-        stream.read(frameLenBytes, 0, 4 * mNumFrames);
-        mOffset += 4 * mNumFrames;
-        for (int i = 0; i < mNumFrames; i++) {
-            mFrameLens[i] =
-                ((0xff & frameLenBytes[4 * i + 0]) << 24) |
-                ((0xff & frameLenBytes[4 * i + 1]) << 16) |
-                ((0xff & frameLenBytes[4 * i + 2]) << 8) |
-                ((0xff & frameLenBytes[4 * i + 3]));
-            /*System.out.println("FrameLen[" + i + "] = " + mFrameLens[i]);*/
+        long[] chunkOffsets;
+        byte[] stsc = getAtomData(kSTSC);
+        byte[] stco = getAtomData(kSTCO);
+        byte[] co64 = getAtomData(kCO64);
+        if (stco != null) {
+            chunkOffsets = new long[getEntryCount(stco, 4)];
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = 0xffffffffL & getInt(stco, 8 + 4 * i);
+            }
+        } else if (co64 != null) {
+            chunkOffsets = new long[getEntryCount(co64, 8)];
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] =
+                    ((0xffffffffL & getInt(co64, 8 + 8 * i)) << 32) |
+                    (0xffffffffL & getInt(co64, 12 + 8 * i));
+            }
+        } else if (mMdatOffset >= 0) {
+            chunkOffsets = new long[] { mMdatOffset };
+            stsc = null;
+        } else {
+            throw new java.io.IOException("Didn't find mdat");
+        }
+
+        // Without stsc, every frame is in the first chunk
+        int numStscEntries = (stsc != null) ? getEntryCount(stsc, 12) : 0;
+
+        mFrames = new FrameIndex(mNumFrames, false);
+        int frame = 0;
+        int entry = 0;
+        for (int chunk = 0;
+             chunk < chunkOffsets.length && frame < mNumFrames;
+             chunk++) {
+            // Each stsc entry covers the chunks from its first chunk,
+            // counting from 1, up to the first chunk of the next entry
+            while (entry + 1 < numStscEntries &&
+                   getInt(stsc, 8 + 12 * (entry + 1)) - 1 <= chunk) {
+                entry++;
+            }
+            int framesInChunk = (numStscEntries > 0) ?
+                getInt(stsc, 12 + 12 * entry) : mNumFrames;
+
+            long offset = chunkOffsets[chunk];
+            for (int i = 0; i < framesInChunk && frame < mNumFrames; i++) {
+                int len = (frameLen != 0) ?
+                    frameLen : getInt(stsz, 12 + 4 * frame);
+                if (len < 0) {
+                    throw new java.io.IOException("Bad frame length");
+                }
+                mFrames.add(offset, len, 0);
+                offset += len;
+                frame++;
+            }
+        }
+        mNumFrames = frame;
+
+        for (int atomType : mAtomMap.keySet()) {
+            if (isSampleTableAtom(atomType)) {
+                mAtomMap.get(atomType).data = null;
+            }
+        }
+    }
+
+    private byte[] getAtomData(int atomType) {
+        Atom atom = mAtomMap.get(atomType);
+        return (atom != null) ? atom.data : null;
+    }
+
+    /**
+     * Returns the entry count of a full atom whose version and flags
+     * are followed by the count and then entries of entrySize bytes,
+     * but no more entries than there's data for.
+     */
+    private static int getEntryCount(byte[] data, int entrySize) {
+        if (data.length < 8) {
+            return 0;
         }
+        long count = 0xffffffffL & getInt(data, 4);
+        return (int)Math.min(count, (data.length - 8) / entrySize);
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return
+            ((0xff & data[pos]) << 24) |
+            ((0xff & data[pos + 1]) << 16) |
+            ((0xff & data[pos + 2]) << 8) |
+            ((0xff & data[pos + 3]));
     }
 
     void parseMp4aFromStsd() {
@@ -383,54 +561,155 @@ public class CheapAAC extends CheapSoundFile {
           "sampleRate = " + mSampleRate);*/
     }
 
-    void parseMdat(InputStream stream, int maxLen)
+    // The most bytes at the start of a frame that we ever need to look
+    // at to find its global gain: 25 bits of ics_info, up to 7 window
+    // groups of 63 scalefactor bands of ms_used bits, then the gain.
+    private static final int GAIN_HEADER_BYTES = 68;
+
+    private void scanAllGains(final FileChannel channel)
         throws java.io.IOException {
-        /*System.out.println("***MDAT***");*/
-        int initialOffset = mOffset;
-        for (int i = 0; i < mNumFrames; i++) {
-            mFrameOffsets[i] = mOffset;
-            /*System.out.println("&&& start: " + (mOffset - initialOffset));*/
-            /*System.out.println("&&& start + len: " +
-              (mOffset - initialOffset + mFrameLens[i]));*/
-            /*System.out.println("&&& maxLen: " + maxLen);*/
-
-            if (mOffset - initialOffset + mFrameLens[i] > maxLen - 8) {
-                mFrameGains[i] = 0;
-            } else {
-                readFrameAndComputeGain(stream, i);
+        // Each frame's gain depends only on its own bytes, except for
+        // unhandled frames, which copy the gain of the frame before
+        // them.  So the gains can be read in any order.
+        boolean keepGoing;
+        if (ParallelScan.isWorthwhile(mNumFrames)) {
+            keepGoing = ParallelScan.scan(
+                this,
+                mNumFrames,
+                ParallelScan.RESPONSIVE_FRAMES_PER_RANGE,
+                new ParallelScan.RangeScanner() {
+                    public void scanRange(int startFrame, int endFrame)
+                            throws java.io.IOException {
+                        readGains(channel, startFrame, endFrame, false);
+                    }
+                });
+        } else {
+            keepGoing = readGains(channel, 0, mNumFrames, true);
+        }
+        if (keepGoing) {
+            reportFrames(mNumFrames, true);
+        }
+    }
+
+    void scanGains(int startFrame, int endFrame)
+        throws java.io.IOException {
+        FileInputStream stream = new FileInputStream(mInputFile);
+        try {
+            readGains(stream.getChannel(), startFrame, endFrame, false);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Sets the gains of frames [startFrame, endFrame).  If reportProgress
+     * is true, the progress and frame listeners are called after every
+     * frame, and false is returned if the progress listener asks us to
+     * stop.
+     */
+    boolean readGains(FileChannel channel,
+                      int startFrame, int endFrame, boolean reportProgress)
+        throws java.io.IOException {
+        byte[] data = new byte[GAIN_HEADER_BYTES];
+        int prevGain = -1;
+        int unhandledFrames = 0;
+        for (int i = startFrame; i < endFrame; i++) {
+            int gain = readFrameAndComputeGain(channel, i, data);
+            if (gain < 0) {
+                unhandledFrames++;
+                if (prevGain < 0) {
+                    prevGain = gainBefore(channel, i, data);
+                }
+                gain = prevGain;
             }
-            if (mFrameGains[i] < mMinGain)
-                mMinGain = mFrameGains[i];
-            if (mFrameGains[i] > mMaxGain)
-                mMaxGain = mFrameGains[i];
+            mFrames.setGain(i, gain);
+            prevGain = gain;
 
-            if (mProgressListener != null) {
+            if (reportProgress) {
+                reportFrames(i + 1, false);
+            }
+            if (reportProgress && mProgressListener != null) {
                 boolean keepGoing = mProgressListener.reportProgress(
-                    mOffset * 1.0 / mFileSize);
+                    (i + 1) * 1.0 / mNumFrames);
                 if (!keepGoing) {
-                    break;
+                    mStats.addDecodeErrors(unhandledFrames);
+                    return false;
                 }
             }
         }
+        mStats.addDecodeErrors(unhandledFrames);
+        return true;
     }
 
-    void readFrameAndComputeGain(InputStream stream, int frameIndex)
+    /**
+     * Returns the gain of the closest frame before the given one that
+     * has a gain of its own, or 0 if there isn't one.  This only reads
+     * frames when a range starts with unhandled frames, which is rare.
+     * It looks back at most GAIN_CHUNK_FRAMES frames, so that a long
+     * run of unhandled frames isn't reread for every chunk or range
+     * that starts in it; past that, the run gets a gain of 0.
+     */
+    int gainBefore(FileChannel channel, int frameIndex, byte[] data)
         throws java.io.IOException {
+        int firstFrame = Math.max(frameIndex - GAIN_CHUNK_FRAMES, 0);
+        for (int i = frameIndex - 1; i >= firstFrame; i--) {
+            int gain = readFrameAndComputeGain(channel, i, data);
+            if (gain >= 0) {
+                return gain;
+            }
+        }
+        return 0;
+    }
 
-        if (mFrameLens[frameIndex] < 4) {
-            mFrameGains[frameIndex] = 0;
-            stream.skip(mFrameLens[frameIndex]);
-            return;
+    /**
+     * Reads the start of the given frame and returns its gain.  Frames
+     * with an element type we don't handle return -1.
+     */
+    int readFrameAndComputeGain(FileChannel channel, int frameIndex,
+                                byte[] data)
+        throws java.io.IOException {
+        long offset = mFrames.getOffset(frameIndex);
+        int frameLen = mFrames.getLen(frameIndex);
+        if (frameLen < 4 || offset + frameLen > mFileSize) {
+            return 0;
         }
 
-        int initialOffset = mOffset;
+        int len = frameLen;
+        if (len > GAIN_HEADER_BYTES) {
+            len = GAIN_HEADER_BYTES;
+        }
+        for (int i = readFully(channel, offset, data, len);
+             i < GAIN_HEADER_BYTES;
+             i++) {
+            data[i] = 0;
+        }
+
+        return computeGain(data);
+    }
 
-        byte[] data = new byte[4];
-        stream.read(data, 0, 4);
-        mOffset += 4;
+    /**
+     * Reads len bytes at position into the start of data, or as many
+     * as there are before the end of the file, and returns how many
+     * it read.  Positional reads don't move the channel's position, so
+     * this is safe to call from several threads at once.
+     */
+    private static int readFully(FileChannel channel, long position,
+                                 byte[] data, int len)
+        throws java.io.IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, len);
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead < 0) {
+                break;
+            }
+            position += bytesRead;
+        }
+        return buffer.position();
+    }
 
+    int computeGain(byte[] data) {
         /*System.out.println(
-            "Block " + frameIndex + ": " +
+            "Block: " +
             data[0] + " " +
             data[1] + " " +
             data[2] + " " +
@@ -443,8 +722,7 @@ public class CheapAAC extends CheapSoundFile {
         case 0:  // ID_SCE: mono
             int monoGain = ((0x01 & data[0]) << 7) | ((0xfe & data[1]) >> 1);
             /*System.out.println("monoGain = " + monoGain);*/
-            mFrameGains[frameIndex] = monoGain;
-            break;
+            return monoGain;
         case 1:  // ID_CPE: stereo
             int windowSequence = (0x60 & data[1]) >> 5;
             /*System.out.println("windowSequence = " + windowSequence);*/
@@ -488,9 +766,6 @@ public class CheapAAC extends CheapSoundFile {
                 int sfgZeroBitCount = 0;
                 for (int b = 0; b < 7; b++) {
                     if ((scaleFactorGrouping & (1 << b)) == 0) {
-                        /*System.out.println("  1 point for bit " + b +
-                                           ": " + (1 << b) +
-                                           ", " + (scaleFactorGrouping & (1 << b)));*/
                         sfgZeroBitCount++;
                     }
                 }
@@ -506,54 +781,24 @@ public class CheapAAC extends CheapSoundFile {
                 /*System.out.println("new startBit = " + startBit);*/
             }
 
-            // We may need to fill our buffer with more than the 4
-            // bytes we've already read, here.
-            int bytesNeeded = 1 + ((startBit + 7) / 8);
-            byte[] oldData = data;
-            data = new byte[bytesNeeded];
-            data[0] = oldData[0];
-            data[1] = oldData[1];
-            data[2] = oldData[2];
-            data[3] = oldData[3];
-            stream.read(data, 4, bytesNeeded - 4);
-            mOffset += (bytesNeeded - 4);
-            /*System.out.println("bytesNeeded: " + bytesNeeded);*/
-
             int firstChannelGain = 0;
             for (int b = 0; b < 8; b++) {
                 int b0 = (b + startBit) / 8;
                 int b1 = 7 - ((b + startBit) % 8);
                 int add = (((1 << b1) & data[b0]) >> b1) << (7 - b);
-                /*System.out.println("Bit " + (b  + startBit) + " " +
-                                   "b0 " + b0 + " " +
-                                   "b1 " + b1 + " " +
-                                   "add " + add);*/
                 firstChannelGain += add;
             }
             /*System.out.println("firstChannelGain = " + firstChannelGain);*/
 
-            mFrameGains[frameIndex] = firstChannelGain;
-            break;
+            return firstChannelGain;
 
         default:
-            if (frameIndex > 0) {
-                mFrameGains[frameIndex] = mFrameGains[frameIndex - 1];
-            } else {
-                mFrameGains[frameIndex] = 0;
-            }
             /*System.out.println("Unhandled idSynEle");*/
-            break;
+            return -1;
         }
-
-        int skip = mFrameLens[frameIndex] - (mOffset - initialOffset);
-        /*System.out.println("frameLen = " + mFrameLens[frameIndex]);*/
-        /*System.out.println("Skip = " + skip);*/
-
-        stream.skip(skip);
-        mOffset += skip;
     }
 
-    public void StartAtom(FileOutputStream out, int atomType)
+    public void StartAtom(OutputStream out, int atomType)
             throws java.io.IOException {
         byte[] atomHeader = new byte[8];
         int atomLen = mAtomMap.get(atomType).len;
@@ -568,7 +813,40 @@ public class CheapAAC extends CheapSoundFile {
         out.write(atomHeader, 0, 8);
     }
 
-    public void WriteAtom(FileOutputStream out, int atomType)
+    /**
+     * Writes the header of an mdat atom with dataLen bytes of data,
+     * using a 64-bit size if a 32-bit one isn't enough.
+     */
+    /**
+     * Returns how many bytes the header of an mdat atom holding dataLen
+     * bytes takes: 8, or 16 if its size needs the 64-bit "largesize"
+     * form.
+     */
+    private static int mdatHeaderLen(long dataLen) {
+        return (dataLen + 8 > 0xffffffffL) ? 16 : 8;
+    }
+
+    public void StartMdatAtom(OutputStream out, long dataLen)
+            throws java.io.IOException {
+        int headerLen = mdatHeaderLen(dataLen);
+        long atomLen = dataLen + headerLen;
+        byte[] atomHeader = new byte[headerLen];
+        long sizeField = (headerLen == 8) ? atomLen : 1;
+        atomHeader[0] = (byte)((sizeField >> 24) & 0xff);
+        atomHeader[1] = (byte)((sizeField >> 16) & 0xff);
+        atomHeader[2] = (byte)((sizeField >> 8) & 0xff);
+        atomHeader[3] = (byte)(sizeField & 0xff);
+        atomHeader[4] = (byte)((kMDAT >> 24) & 0xff);
+        atomHeader[5] = (byte)((kMDAT >> 16) & 0xff);
+        atomHeader[6] = (byte)((kMDAT >> 8) & 0xff);
+        atomHeader[7] = (byte)(kMDAT & 0xff);
+        for (int i = 8; i < headerLen; i++) {
+            atomHeader[i] = (byte)((atomLen >> (8 * (15 - i))) & 0xff);
+        }
+        out.write(atomHeader, 0, headerLen);
+    }
+
+    public void WriteAtom(OutputStream out, int atomType)
             throws java.io.IOException {
         Atom atom = mAtomMap.get(atomType);
         StartAtom(out, atomType);
@@ -585,11 +863,34 @@ public class CheapAAC extends CheapSoundFile {
         atom.data = data;
     }
 
-    public void WriteFile(File outputFile, int startFrame, int numFrames)
+    protected CheapSoundFile newSlice(FrameIndex frames,
+                                      long headerLen, long dataLen) {
+        CheapAAC slice = new CheapAAC();
+        slice.mFrames = frames;
+        slice.mNumFrames = frames.size();
+        slice.mFileSize = headerLen + dataLen;
+        slice.mBitrate = mBitrate;
+        slice.mSampleRate = mSampleRate;
+        slice.mChannels = mChannels;
+        slice.mSamplesPerFrame = mSamplesPerFrame;
+
+        // writeHeader has just set the sample table atoms for the slice
+        slice.mAtomMap = new HashMap<Integer, Atom>();
+        for (int atomType : mAtomMap.keySet()) {
+            Atom atom = mAtomMap.get(atomType);
+            Atom copy = new Atom();
+            copy.start = atom.start;
+            copy.len = atom.len;
+            copy.data = atom.data;
+            slice.mAtomMap.put(atomType, copy);
+        }
+        return slice;
+    }
+
+    protected void writeHeader(OutputStream out,
+                               int[] startFrames, int[] numFrames)
             throws java.io.IOException {
-        outputFile.createNewFile();
-        FileInputStream in = new FileInputStream(mInputFile);
-        FileOutputStream out = new FileOutputStream(outputFile);
+        int totalFrames = getTotalFrames(numFrames);
 
         SetAtomData(kFTYP, new byte[] {
                 'M', '4', 'A', ' ',
@@ -603,10 +904,10 @@ public class CheapAAC extends CheapSoundFile {
         SetAtomData(kSTTS, new byte[] {
                 0, 0, 0, 0,  // version / flags
                 0, 0, 0, 1,  // entry count
-                (byte) ((numFrames >> 24) & 0xff),
-                (byte) ((numFrames >> 16) & 0xff),
-                (byte) ((numFrames >> 8) & 0xff),
-                (byte) (numFrames & 0xff),
+                (byte) ((totalFrames >> 24) & 0xff),
+                (byte) ((totalFrames >> 16) & 0xff),
+                (byte) ((totalFrames >> 8) & 0xff),
+                (byte) (totalFrames & 0xff),
                 (byte) ((mSamplesPerFrame >> 24) & 0xff),
                 (byte) ((mSamplesPerFrame >> 16) & 0xff),
                 (byte) ((mSamplesPerFrame >> 8) & 0xff),
@@ -617,33 +918,38 @@ public class CheapAAC extends CheapSoundFile {
                 0, 0, 0, 0,  // version / flags
                 0, 0, 0, 1,  // entry count
                 0, 0, 0, 1,  // first chunk
-                (byte) ((numFrames >> 24) & 0xff),
-                (byte) ((numFrames >> 16) & 0xff),
-                (byte) ((numFrames >> 8) & 0xff),
-                (byte) (numFrames & 0xff),
+                (byte) ((totalFrames >> 24) & 0xff),
+                (byte) ((totalFrames >> 16) & 0xff),
+                (byte) ((totalFrames >> 8) & 0xff),
+                (byte) (totalFrames & 0xff),
                 0, 0, 0, 1  // Smaple desc index
             });
 
-        byte[] stszData = new byte[12 + 4 * numFrames];
-        stszData[8] = (byte)((numFrames >> 24) & 0xff);
-        stszData[9] = (byte)((numFrames >> 16) & 0xff);
-        stszData[10] = (byte)((numFrames >> 8) & 0xff);
-        stszData[11] = (byte)(numFrames & 0xff);
-        for (int i = 0; i < numFrames; i++) {
-            stszData[12 + 4 * i] =
-                (byte)((mFrameLens[startFrame + i] >> 24) & 0xff);
-            stszData[13 + 4 * i] =
-                (byte)((mFrameLens[startFrame + i] >> 16) & 0xff);
-            stszData[14 + 4 * i] =
-                (byte)((mFrameLens[startFrame + i] >> 8) & 0xff);
-            stszData[15 + 4 * i] =
-                (byte)(mFrameLens[startFrame + i] & 0xff);
+        byte[] stszData = new byte[12 + 4 * totalFrames];
+        stszData[8] = (byte)((totalFrames >> 24) & 0xff);
+        stszData[9] = (byte)((totalFrames >> 16) & 0xff);
+        stszData[10] = (byte)((totalFrames >> 8) & 0xff);
+        stszData[11] = (byte)(totalFrames & 0xff);
+        int pos = 12;
+        for (int r = 0; r < startFrames.length; r++) {
+            for (int i = 0; i < numFrames[r]; i++) {
+                int len = mFrames.getLen(startFrames[r] + i);
+                stszData[pos++] = (byte)((len >> 24) & 0xff);
+                stszData[pos++] = (byte)((len >> 16) & 0xff);
+                stszData[pos++] = (byte)((len >> 8) & 0xff);
+                stszData[pos++] = (byte)(len & 0xff);
+            }
         }
         SetAtomData(kSTSZ, stszData);
 
+        long mdatDataLen = getTotalLen(startFrames, numFrames);
+
+        // 144 assumes an 8-byte mdat header; the frames start further
+        // in if it needs a 64-bit size.
         int mdatOffset =
             144 +
-            4 * numFrames +
+            (mdatHeaderLen(mdatDataLen) - 8) +
+            4 * totalFrames +
             mAtomMap.get(kSTSD).len +
             mAtomMap.get(kSTSC).len +
             mAtomMap.get(kMVHD).len +
@@ -694,12 +1000,6 @@ public class CheapAAC extends CheapSoundFile {
             mAtomMap.get(kMVHD).len +
             mAtomMap.get(kTRAK).len;
 
-        int mdatLen = 8;
-        for (int i = 0; i < numFrames; i++) {
-            mdatLen += mFrameLens[startFrame + i];
-        }
-        mAtomMap.get(kMDAT).len = mdatLen;
-
         WriteAtom(out, kFTYP);
         StartAtom(out, kMOOV);
         {
@@ -727,32 +1027,7 @@ public class CheapAAC extends CheapSoundFile {
                 }
             }
         }
-        StartAtom(out, kMDAT);
-
-        int maxFrameLen = 0;
-        for (int i = 0; i < numFrames; i++) {
-            if (mFrameLens[startFrame + i] > maxFrameLen)
-                maxFrameLen = mFrameLens[startFrame + i];
-        }
-        byte[] buffer = new byte[maxFrameLen];
-        int pos = 0;
-        for (int i = 0; i < numFrames; i++) {
-            int skip = mFrameOffsets[startFrame + i] - pos;
-            int len = mFrameLens[startFrame + i];
-            if (skip < 0) {
-                continue;
-            }
-            if (skip > 0) {
-                in.skip(skip);
-                pos += skip;
-            }
-            in.read(buffer, 0, len);
-            out.write(buffer, 0, len);
-            pos += len;
-        }
-
-        in.close();
-        out.close();
+        StartMdatAtom(out, mdatDataLen);
     }
 
     /** For debugging
@@ -16,10 +16,13 @@
 
 package com.ringdroid.soundfile;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.Math;
 
 /**
@@ -34,6 +37,10 @@ import java.lang.Math;
  * phones.  In the future it may be necessary to support other bitrates.
  */
 public class CheapAMR extends CheapSoundFile {
+    // Set to rescan the gains of every parallel scan serially, and
+    // throw if any of them differ
+    private static final boolean DEBUG = false;
+
     public static Factory getFactory() {
         return new Factory() {
             public CheapSoundFile create() {
@@ -46,43 +53,83 @@ public class CheapAMR extends CheapSoundFile {
     }
 
     // Member variables containing frame info
-    private int mNumFrames;
-    private int[] mFrameOffsets;
-    private int[] mFrameLens;
-    private int[] mFrameGains;
-    private int mFileSize;
+    private FrameIndex mFrames;
+    private long mFileSize;
     private int mBitRate;
 
-    // Member variables used only while initially parsing the file
-    private int mOffset;
-    private int mMaxFrames;
-    private int mMinGain;
-    private int mMaxGain;
+    // Where the AMR frames end, for scanGains
+    private long mDataEnd;
+
+    // Member variables used only while parsing the file
+    private long mOffset;
+    private boolean mIndexOnly;
+    private boolean mParallel;
+
+    /**
+     * One pass through the AMR frames of the file: where it's got to,
+     * the state of the gain predictor, and scratch space that's reused
+     * for every frame, so that parsing a frame allocates nothing.
+     */
+    private static class FrameScan {
+        public InputStream stream;
+        public long offset;
+        public int bitRate;
+        public int[] prevEner = new int[4];
+
+        // While scanGains fills in gains, the next frame whose gain
+        // parseAMRFrame computes, and the range of frames to actually set
+        public int gainCursor = -1;
+        public int firstGainToSet;
+        public int endGainToSet;
+
+        // Frames of types we can't get a gain from, counted by the pass
+        // that adds them to the index
+        public int unsupportedFrames;
+
+        public byte[] block = new byte[MAX_BLOCK_SIZE];
+        public int[] bits = new int[MAX_BLOCK_SIZE * 8];
+        public int[] gain = new int[4];
+        public int[] adaptiveIndex = new int[4];
+        public int[] adaptiveGain = new int[4];
+        public int[] fixedGain = new int[4];
+        public int[][] pulse = new int[4][10];
+        public int[] code = new int[40];
+
+        public FrameScan(InputStream stream, long offset, int bitRate) {
+            this.stream = stream;
+            this.offset = offset;
+            this.bitRate = bitRate;
+        }
+    };
 
     public CheapAMR() {
     }
 
     public int getNumFrames() {
-        return mNumFrames;
+        return mFrames.size();
+    }
+
+    public FrameIndex getFrameIndex() {
+        return mFrames;
     }
 
     public int getSamplesPerFrame() {
         return 40;
     }
 
-    public int[] getFrameOffsets() {
-        return mFrameOffsets;
+    public long[] getFrameOffsets() {
+        return mFrames.getOffsets();
     }
 
     public int[] getFrameLens() {
-        return mFrameLens;
+        return mFrames.getLens();
     }
 
     public int[] getFrameGains() {
-        return mFrameGains;
+        return mFrames.getGains();
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return mFileSize;        
     }
 
@@ -105,25 +152,116 @@ public class CheapAMR extends CheapSoundFile {
     public void ReadFile(File inputFile)
             throws java.io.FileNotFoundException,
             java.io.IOException {
+        readFile(inputFile, false);
+    }
+
+    /**
+     * The length of each frame follows from its first byte, so the
+     * frames can be found by reading one byte of each.
+     */
+    public void ReadFrameIndex(File inputFile)
+            throws java.io.FileNotFoundException,
+            java.io.IOException {
+        readFile(inputFile, true);
+        deferGains();
+    }
+
+    private void readFile(File inputFile, boolean indexOnly)
+            throws java.io.FileNotFoundException,
+            java.io.IOException {
         super.ReadFile(inputFile);
-        mNumFrames = 0;
-        mMaxFrames = 64;  // This will grow as needed
-        mFrameOffsets = new int[mMaxFrames];
-        mFrameLens = new int[mMaxFrames];
-        mFrameGains = new int[mMaxFrames];
-        mMinGain = 1000000000;
-        mMaxGain = 0;
+        // With several scan threads, find the frames first, then fill
+        // in their gains in parallel.
+        mParallel = !indexOnly && CheapSoundFile.getScanThreads() > 1;
+        mIndexOnly = indexOnly || mParallel;
+        // One frame per AMR subframe, sharing the AMR frame's bytes
+        mFrames = new SubframeIndex(64);
         mBitRate = 10;
         mOffset = 0;
 
-        // No need to handle filesizes larger than can fit in a 32-bit int
-        mFileSize = (int)mInputFile.length();
+        mFileSize = mInputFile.length();
 
         if (mFileSize < 128) {
             throw new java.io.IOException("File too small to parse");
         }
 
-        FileInputStream stream = new FileInputStream(mInputFile);
+        InputStream stream = new BufferedInputStream(
+            new FileInputStream(mInputFile), STREAM_BUFFER_SIZE);
+        try {
+            readHeaders(stream);
+        } finally {
+            stream.close();
+        }
+
+        if (mParallel) {
+            scanAllGains();
+        }
+    }
+
+    /**
+     * Fills in the gains of every frame found by an index-only pass.
+     * The ranges are scanned by scanGains, which warms up the predictor
+     * on the AMR frame before each range, so the gains come out exactly
+     * the same as from a single serial pass.
+     */
+    private void scanAllGains()
+            throws java.io.IOException {
+        int numFrames = mFrames.size();
+        boolean keepGoing;
+        if (ParallelScan.isWorthwhile(numFrames)) {
+            keepGoing = ParallelScan.scan(
+                this,
+                numFrames,
+                ParallelScan.RESPONSIVE_FRAMES_PER_RANGE,
+                new ParallelScan.RangeScanner() {
+                    public void scanRange(int startFrame, int endFrame)
+                            throws java.io.IOException {
+                        scanGains(startFrame, endFrame);
+                    }
+                });
+        } else {
+            scanGains(0, numFrames);
+            keepGoing = true;
+        }
+        if (keepGoing) {
+            if (DEBUG) {
+                checkRangeGains(numFrames);
+            }
+            reportFrames(numFrames, true);
+        }
+    }
+
+    /**
+     * Rescans the gains of every frame in ranges of framesPerRange
+     * frames, each with its own scanGains as a parallel scan does, and
+     * throws if any gain comes out different from the one the frame
+     * already has.  With framesPerRange at least the number of frames,
+     * this checks a parallel scan against a serial one; with smaller
+     * ranges, the other way around.
+     */
+    void checkRangeGains(int framesPerRange)
+            throws java.io.IOException {
+        int numFrames = mFrames.size();
+        int[] expected = mFrames.getGains();
+        for (int start = 0; start < numFrames; start += framesPerRange) {
+            scanGains(start, Math.min(start + framesPerRange, numFrames));
+        }
+        for (int i = 0; i < numFrames; i++) {
+            int gain = mFrames.getGain(i);
+            if (gain != expected[i]) {
+                for (int j = 0; j < numFrames; j++) {
+                    mFrames.setGain(j, expected[j]);
+                }
+                throw new java.io.IOException(
+                    "Gain of frame " + i + " is " + gain + " scanned in " +
+                    framesPerRange + "-frame ranges, " + expected[i] +
+                    " before");
+            }
+        }
+    }
+
+    private void readHeaders(InputStream stream)
+            throws java.io.IOException {
         byte[] header = new byte[12];
         stream.read(header, 0, 6);
         mOffset += 6;
@@ -148,14 +286,14 @@ public class CheapAMR extends CheapSoundFile {
             header[10] == 'p' &&
             header[11] == '4') {
 
-            int boxLen =
-                ((0xff & header[0]) << 24) |
+            long boxLen =
+                ((0xffL & header[0]) << 24) |
                 ((0xff & header[1]) << 16) |
                 ((0xff & header[2]) << 8) |
                 ((0xff & header[3]));
 
             if (boxLen >= 4 && boxLen <= mFileSize - 8) {
-                stream.skip(boxLen - 12);
+                skipFully(stream, boxLen - 12);
                 mOffset += boxLen - 12;
             }
 
@@ -163,7 +301,7 @@ public class CheapAMR extends CheapSoundFile {
         }
     }
 
-    private void parse3gpp(InputStream stream, int maxLen)
+    private void parse3gpp(InputStream stream, long maxLen)
             throws java.io.IOException {
         if (maxLen < 8)
             return;
@@ -172,8 +310,8 @@ public class CheapAMR extends CheapSoundFile {
         stream.read(boxHeader, 0, 8);
         mOffset += 8;
 
-        int boxLen =
-            ((0xff & boxHeader[0]) << 24) |
+        long boxLen =
+            ((0xffL & boxHeader[0]) << 24) |
             ((0xff & boxHeader[1]) << 16) |
             ((0xff & boxHeader[2]) << 8) |
             ((0xff & boxHeader[3]));
@@ -189,32 +327,33 @@ public class CheapAMR extends CheapSoundFile {
             return;
         }
 
-	stream.skip(boxLen - 8);
+	skipFully(stream, boxLen - 8);
 	mOffset += (boxLen - 8);
 
         parse3gpp(stream, maxLen - boxLen);
     }
 
-    void parseAMR(InputStream stream, int maxLen)
+    void parseAMR(InputStream stream, long maxLen)
             throws java.io.IOException {
-        int[] prevEner = new int[4];
-        for (int i = 0; i < 4; i++) {
-            prevEner[i] = 0;
-        }
-
-        int[] prevEnerMR122 = new int[4];
-        for (int i = 0; i < 4; i++) {
-            prevEnerMR122[i] = -2381;
-        }
+        FrameScan scan = new FrameScan(stream, mOffset, mBitRate);
 
-        int originalMaxLen = maxLen;
-        int bytesTotal = 0;
+        mDataEnd = mOffset + maxLen;
+        long originalMaxLen = maxLen;
+        long bytesTotal = 0;
         while (maxLen > 0) {
-            int bytesConsumed = parseAMRFrame(stream, maxLen, prevEner);
+            int bytesConsumed;
+            if (mIndexOnly) {
+                bytesConsumed = indexAMRFrame(scan, maxLen);
+            } else {
+                bytesConsumed = parseAMRFrame(scan, maxLen);
+                reportFrames(mFrames.size(), false);
+            }
             bytesTotal += bytesConsumed;
             maxLen -= bytesConsumed;
 
-            if (mProgressListener != null) {
+            // Before a parallel scan the index pass is quick, and the
+            // scan itself reports progress from 0 again.
+            if (mProgressListener != null && !mParallel) {
                 boolean keepGoing = mProgressListener.reportProgress(
                     bytesTotal * 1.0 / originalMaxLen);
                 if (!keepGoing) {
@@ -222,49 +361,188 @@ public class CheapAMR extends CheapSoundFile {
                 }
             }
         }
+        mOffset = scan.offset;
+        mBitRate = scan.bitRate;
+        mStats.addDecodeErrors(scan.unsupportedFrames);
+        if (!mIndexOnly) {
+            reportFrames(mFrames.size(), true);
+        }
     }
 
-    int parseAMRFrame(InputStream stream, int maxLen, int[] prevEner)
+    /**
+     * Like parseAMRFrame, but only reads the frame type, adding the same
+     * frames as it would with a gain of 0, for scanGains to fill in.
+     */
+    int indexAMRFrame(FrameScan scan, long maxLen)
             throws java.io.IOException {
-        int frameOffset = mOffset;
-        byte[] frameTypeHeader = new byte[1];
-        stream.read(frameTypeHeader, 0, 1);
-        mOffset += 1;
-        int frameType = ((0xff & frameTypeHeader[0]) >> 3) % 0x0F;
-        int frameQuality = ((0xff & frameTypeHeader[0]) >> 2) & 0x01;
+        long frameOffset = scan.offset;
+        int frameTypeHeader = readFrameTypeHeader(scan);
+        int frameType = (frameTypeHeader >> 3) % 0x0F;
+        int blockSize = BLOCK_SIZES[frameType];
+
+        if (blockSize + 1 > maxLen) {
+            return (int)maxLen;
+        }
+
+        if (blockSize == 0) {
+            return 1;
+        }
+
+        skipFully(scan.stream, blockSize);
+        scan.offset += blockSize;
+
+        switch (frameType) {
+        case 0:
+        case 1:
+        case 7:
+            scan.bitRate = (frameType == 7) ? 12 : 5;
+            for (int i = 0; i < 4; i++) {
+                addFrame(scan, frameOffset, blockSize + 1, 0);
+            }
+            break;
+        default:
+            if (scan.gainCursor < 0) {
+                scan.unsupportedFrames++;
+            }
+            addFrame(scan, frameOffset, blockSize + 1, 1);
+            break;
+        }
+
+        return blockSize + 1;
+    }
+
+    /**
+     * Reads the byte at the start of each AMR frame, treating the end of
+     * the file as a 0.
+     */
+    private static int readFrameTypeHeader(FrameScan scan)
+            throws java.io.IOException {
+        int frameTypeHeader = scan.stream.read();
+        scan.offset += 1;
+        return frameTypeHeader < 0 ? 0 : frameTypeHeader;
+    }
+
+    /**
+     * Reads len bytes into the start of block, zeroing whatever's past
+     * the end of the file.
+     */
+    private static void readBlock(InputStream stream, byte[] block, int len)
+            throws java.io.IOException {
+        int pos = 0;
+        while (pos < len) {
+            int count = stream.read(block, pos, len - pos);
+            if (count <= 0) {
+                break;
+            }
+            pos += count;
+        }
+        for (; pos < len; pos++) {
+            block[pos] = 0;
+        }
+    }
+
+    /**
+     * Skips len bytes, or to the end of the file; unlike
+     * InputStream.skip, doesn't stop early at the end of a buffer.
+     */
+    private static void skipFully(InputStream stream, long len)
+            throws java.io.IOException {
+        while (len > 0) {
+            long skipped = stream.skip(len);
+            if (skipped <= 0) {
+                if (stream.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            len -= skipped;
+        }
+    }
+
+    /**
+     * Returns the first of the frames that share frame's AMR frame.
+     */
+    private int firstFrameOfAMRFrame(int frame) {
+        long offset = mFrames.getOffset(frame);
+        while (frame > 0 && mFrames.getOffset(frame - 1) == offset) {
+            frame--;
+        }
+        return frame;
+    }
+
+    void scanGains(int startFrame, int endFrame)
+            throws java.io.IOException {
+        // Every supported AMR frame pushes the energies of its 4
+        // subframes into prevEner, replacing all of it, so parsing
+        // starts at the last supported frame before the ones we want
+        // (skipping unsupported frames, which have a single subframe
+        // and leave prevEner alone) to get prevEner exactly right.
+        // The gains of that frame itself depend on the frame before,
+        // so they're thrown away, as are the gains of any frames of the
+        // first and last AMR frames that are outside the range; they
+        // belong to whoever scans the ranges next to this one.
+        int parseFrom = firstFrameOfAMRFrame(startFrame);
+        while (parseFrom > 0) {
+            int prev = firstFrameOfAMRFrame(parseFrom - 1);
+            boolean supported = (parseFrom - prev == 4);
+            parseFrom = prev;
+            if (supported) {
+                break;
+            }
+        }
+
+        FileInputStream file = new FileInputStream(mInputFile);
+        try {
+            long offset = mFrames.getOffset(parseFrom);
+            file.getChannel().position(offset);
+            FrameScan scan = new FrameScan(
+                new BufferedInputStream(file, STREAM_BUFFER_SIZE),
+                offset, mBitRate);
+            scan.gainCursor = parseFrom;
+            scan.firstGainToSet = startFrame;
+            scan.endGainToSet = endFrame;
+            while (scan.gainCursor < endFrame && scan.offset < mDataEnd) {
+                parseAMRFrame(scan, mDataEnd - scan.offset);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    int parseAMRFrame(FrameScan scan, long maxLen)
+            throws java.io.IOException {
+        long frameOffset = scan.offset;
+        int frameTypeHeader = readFrameTypeHeader(scan);
+        int frameType = (frameTypeHeader >> 3) % 0x0F;
+        int frameQuality = (frameTypeHeader >> 2) & 0x01;
         int blockSize = BLOCK_SIZES[frameType];
 
         if (blockSize + 1 > maxLen) {
             // We can't read the full frame, so consume the remaining
             // bytes to end processing the AMR stream.
-            return maxLen;
+            return (int)maxLen;
         }
 
         if (blockSize == 0) {
             return 1;
         }
 
-        byte[] v = new byte[blockSize];
-        stream.read(v, 0, blockSize);
-        mOffset += blockSize;
+        byte[] v = scan.block;
+        readBlock(scan.stream, v, blockSize);
+        scan.offset += blockSize;
 
-        int[] bits = new int[blockSize * 8];
-        int ii = 0;
-        int value = 0xff & v[ii];
+        // The parameters are spread over the frame in an order that
+        // depends on the mode, so unpack all the bits up front.
+        int[] bits = scan.bits;
         for (int i = 0; i < blockSize * 8; i++) {
-            bits[i] = ((value & 0x80) >> 7);
-            value <<= 1;
-            if ((i & 0x07) == 0x07 && i < blockSize * 8 - 1) {
-                ii += 1;
-                value = 0xff & v[ii];
-            }
+            bits[i] = ((0xff & v[i >> 3]) >> (7 - (i & 0x07))) & 0x01;
         }
 
-	int[] gain;
+        int[] prevEner = scan.prevEner;
+	int[] gain = scan.gain;
         switch (frameType) {
 	case 0:
-            mBitRate = 5;
-            gain = new int[4];
+            scan.bitRate = 5;
             gain[0] =
                 0x01 * bits[28] +
                 0x02 * bits[29] +
@@ -290,9 +568,8 @@ public class CheapAMR extends CheapSoundFile {
 		int index = gain[i] * 4 + (i & 1) * 2 + 1;
 		int gFac = GAIN_FAC_MR475[index];
 
-                double log2 = Math.log(gFac) / Math.log(2);
-                int exp = (int)log2;
-                int frac = (int)((log2 - exp) * 32768);
+                int exp = log2Exponent(gFac);
+                int frac = log2Fraction(gFac);
 
 		exp -= 12;
 		int tmp = exp * 49320;
@@ -313,14 +590,13 @@ public class CheapAMR extends CheapSoundFile {
 
                 int frameGainEstimate = (gcode0 * gFac) >> 24;
 
-                addFrame(frameOffset, blockSize + 1, frameGainEstimate);
+                addFrame(scan, frameOffset, blockSize + 1, frameGainEstimate);
             }
 
 	    break;
 
         case 1:
-            mBitRate = 5;
-            gain = new int[4];
+            scan.bitRate = 5;
             gain[0] =
                 0x01 * bits[24] +
                 0x02 * bits[25] +
@@ -367,24 +643,21 @@ public class CheapAMR extends CheapSoundFile {
 
                 int frameGainEstimate = (gcode0 * gFac) >> 24;
 
-                addFrame(frameOffset, blockSize + 1, frameGainEstimate);
+                addFrame(scan, frameOffset, blockSize + 1, frameGainEstimate);
             }
 
             break;
         case 7:
-            mBitRate = 12;
-            int[] adaptiveIndex = new int[4];
-            int[] adaptiveGain = new int[4];
-            int[] fixedGain = new int[4];
-            int[][] pulse = new int[4][];
-            for (int i = 0; i < 4; i++) {
-                pulse[i] = new int[10];
-            }
+            scan.bitRate = 12;
+            int[] adaptiveIndex = scan.adaptiveIndex;
+            int[] adaptiveGain = scan.adaptiveGain;
+            int[] fixedGain = scan.fixedGain;
+            int[][] pulse = scan.pulse;
             getMR122Params(bits, adaptiveIndex, adaptiveGain, fixedGain, pulse);
 
             int T0 = 0;
             for (int subframe = 0; subframe < 4; subframe++) {
-                int[] code = new int[40];
+                int[] code = scan.code;
                 for (int i = 0; i < 40; i++) {
                     code[i] = 0;
                 }
@@ -453,9 +726,8 @@ public class CheapAMR extends CheapSoundFile {
                 }
                 enerCode = ((enerCode + 0x8000) >> 16) * 52428;
 
-                double log2 = Math.log(enerCode) / Math.log(2);
-                int exp = (int)log2;
-                int frac = (int)((log2 - exp) * 32768);
+                int exp = log2Exponent(enerCode);
+                int frac = log2Fraction(enerCode);
                 enerCode = ((exp - 30) << 16) + (frac * 2);
 
                 int ener =
@@ -470,8 +742,7 @@ public class CheapAMR extends CheapSoundFile {
                 int expGCode = ener >> 16;
                 int fracGCode = (ener >> 1) - (expGCode << 15);
 
-                int gCode0 = (int)
-                    (Math.pow(2.0, expGCode + (fracGCode / 32768.0)) + 0.5);
+                int gCode0 = pow2(expGCode, fracGCode);
 
                 if (gCode0 <= 2047) {
                     gCode0 = gCode0 << 4;
@@ -490,7 +761,7 @@ public class CheapAMR extends CheapSoundFile {
 
                 int frameGainEstimate = gainCode;
 
-                addFrame(frameOffset, blockSize + 1, frameGainEstimate);
+                addFrame(scan, frameOffset, blockSize + 1, frameGainEstimate);
 
                 int quaEnerMR122 = QUA_GAIN_CODE[3 * index + 1];
                 prevEner[3] = prevEner[2];
@@ -501,8 +772,10 @@ public class CheapAMR extends CheapSoundFile {
             break;
 
         default:
-            System.out.println("Unsupported frame type: " + frameType);
-            addFrame(frameOffset, blockSize + 1, 1);
+            if (scan.gainCursor < 0) {
+                scan.unsupportedFrames++;
+            }
+            addFrame(scan, frameOffset, blockSize + 1, 1);
             break;
         }
 
@@ -510,40 +783,102 @@ public class CheapAMR extends CheapSoundFile {
         return blockSize + 1;
     }
 
-    void addFrame(int offset, int frameSize, int gain) {
-        mFrameOffsets[mNumFrames] = offset;
-        mFrameLens[mNumFrames] = frameSize;
-        mFrameGains[mNumFrames] = gain;
-        if (gain < mMinGain)
-            mMinGain = gain;
-        if (gain > mMaxGain)
-            mMaxGain = gain;
-
-        mNumFrames++;
-        if (mNumFrames == mMaxFrames) {
-            int newMaxFrames = mMaxFrames * 2;
-
-            int[] newOffsets = new int[newMaxFrames];
-            int[] newLens = new int[newMaxFrames];
-            int[] newGains = new int[newMaxFrames];
-            for (int i = 0; i < mNumFrames; i++) {
-                newOffsets[i] = mFrameOffsets[i];
-                newLens[i] = mFrameLens[i];
-                newGains[i] = mFrameGains[i];
-            }
-            mFrameOffsets = newOffsets;
-            mFrameLens = newLens;
-            mFrameGains = newGains;
-            mMaxFrames = newMaxFrames;
+    // Fixed-point log2 and pow2, as in the 3GPP reference decoder
+    // (TS 26.073, log2.c and pow2.c), so the gains come out the same
+    // as the decoder's without any floating point.
+
+    /**
+     * Returns the integer part of log2(x), or 0 if x <= 0.
+     */
+    static int log2Exponent(int x) {
+        if (x <= 0) {
+            return 0;
+        }
+        return 31 - Integer.numberOfLeadingZeros(x);
+    }
+
+    /**
+     * Returns the fractional part of log2(x) in Q15, or 0 if x <= 0,
+     * interpolated from LOG2_TABLE.
+     */
+    static int log2Fraction(int x) {
+        if (x <= 0) {
+            return 0;
+        }
+        x <<= Integer.numberOfLeadingZeros(x) - 1;
+        int i = (x >> 25) - 32;
+        int a = (x >> 10) & 0x7fff;
+        int y = (LOG2_TABLE[i] << 16) -
+            (LOG2_TABLE[i] - LOG2_TABLE[i + 1]) * a * 2;
+        return y >> 16;
+    }
+
+    /**
+     * Returns 2^(exponent + fraction / 32768), rounded, for a fraction
+     * in Q15, interpolated from POW2_TABLE.
+     */
+    static int pow2(int exponent, int fraction) {
+        int i = fraction >> 10;
+        int a = (fraction << 5) & 0x7fff;
+        int x = (POW2_TABLE[i] << 16) -
+            (POW2_TABLE[i] - POW2_TABLE[i + 1]) * a * 2;
+        int shift = 30 - exponent;
+        if (shift > 31) {
+            return 0;
+        } else if (shift > 0) {
+            return (x >> shift) + ((x >> (shift - 1)) & 1);
+        } else {
+            long y = (long)x << -shift;
+            return y > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)y;
         }
     }
 
-    public void WriteFile(File outputFile, int startFrame, int numFrames)
+    void writeCache(DataOutputStream out)
             throws java.io.IOException {
-        outputFile.createNewFile();
-        FileInputStream in = new FileInputStream(mInputFile);
-        FileOutputStream out = new FileOutputStream(outputFile);
+        out.writeLong(mFileSize);
+        out.writeInt(mBitRate);
+        mFrames.write(out);
+    }
+
+    void readCache(DataInputStream in)
+            throws java.io.IOException {
+        mFileSize = in.readLong();
+        mBitRate = in.readInt();
+        mFrames = SubframeIndex.readSubframes(in);
+    }
+
+    void addFrame(FrameScan scan, long offset, int frameSize, int gain) {
+        if (scan.gainCursor >= 0) {
+            // Filling in the gains of frames ReadFrameIndex found
+            if (scan.gainCursor >= scan.firstGainToSet &&
+                scan.gainCursor < scan.endGainToSet) {
+                mFrames.setGain(scan.gainCursor, gain);
+            }
+            scan.gainCursor++;
+        } else {
+            mFrames.add(offset, frameSize, gain);
+        }
+    }
 
+    protected CheapSoundFile newSlice(FrameIndex frames,
+                                      long headerLen, long dataLen) {
+        // A slice can start partway through the frames of one AMR
+        // frame, which scanGains can't handle, so if there are gains
+        // left to compute let createSlice scan the new file instead.
+        if (!hasAllGains()) {
+            return null;
+        }
+        CheapAMR slice = new CheapAMR();
+        slice.mFrames = frames;
+        slice.mFileSize = headerLen + dataLen;
+        slice.mBitRate = mBitRate;
+        slice.mDataEnd = headerLen + dataLen;
+        return slice;
+    }
+
+    protected void writeHeader(OutputStream out,
+                               int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
         byte[] header = new byte[6];
         header[0] = '#';
         header[1] = '!';
@@ -552,31 +887,6 @@ public class CheapAMR extends CheapSoundFile {
         header[4] = 'R';
         header[5] = '\n';
         out.write(header, 0, 6);
-
-        int maxFrameLen = 0;
-        for (int i = 0; i < numFrames; i++) {
-            if (mFrameLens[startFrame + i] > maxFrameLen)
-                maxFrameLen = mFrameLens[startFrame + i];
-        }
-        byte[] buffer = new byte[maxFrameLen];
-        int pos = 0;
-        for (int i = 0; i < numFrames; i++) {
-            int skip = mFrameOffsets[startFrame + i] - pos;
-            int len = mFrameLens[startFrame + i];
-            if (skip < 0) {
-                continue;
-            }
-            if (skip > 0) {
-                in.skip(skip);
-                pos += skip;
-            }
-            in.read(buffer, 0, len);
-            out.write(buffer, 0, len);
-            pos += len;
-        }
-
-        in.close();
-        out.close();
     }
 
     void getMR122Params(int[] bits,
@@ -853,6 +1163,10 @@ public class CheapAMR extends CheapSoundFile {
     static private int BLOCK_SIZES[] = {
         12, 13, 15, 17, 19, 20, 26, 31,
         5, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int MAX_BLOCK_SIZE = 31;
+
+    // Frames are read through a buffer of this size.
+    private static final int STREAM_BUFFER_SIZE = 16384;
 
     static private int GAIN_FAC_MR515[] = {
         28753, 2785, 6594, 7413, 10444, 1269, 4423, 1556,
@@ -1026,6 +1340,21 @@ public class CheapAMR extends CheapSoundFile {
 
     static private int GRAY[] = {0, 1, 3, 2, 5, 6, 4, 7};
 
+    // log2(1 + i / 32) in Q15 and 2^(i / 32) in Q14, for i = 0 to 32
+    static private int LOG2_TABLE[] = {
+        0, 1455, 2866, 4236, 5568, 6863, 8124, 9352,
+        10549, 11716, 12855, 13967, 15054, 16117, 17156, 18172,
+        19167, 20142, 21097, 22033, 22951, 23852, 24735, 25603,
+        26455, 27291, 28113, 28922, 29716, 30497, 31266, 32023,
+        32767 };
+
+    static private int POW2_TABLE[] = {
+        16384, 16743, 17109, 17484, 17867, 18258, 18658, 19066,
+        19484, 19911, 20347, 20792, 21247, 21713, 22188, 22674,
+        23170, 23678, 24196, 24726, 25268, 25821, 26386, 26964,
+        27554, 28158, 28774, 29405, 30048, 30706, 31379, 32066,
+        32767 };
+
     static private int QUA_GAIN_PITCH[] = {
         0, 3277, 6556, 8192, 9830, 11469, 12288, 13107, 13926,
         14746, 15565, 16384, 17203, 18022, 18842, 19661};
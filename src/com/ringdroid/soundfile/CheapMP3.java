@@ -16,10 +16,11 @@
 
 package com.ringdroid.soundfile;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -47,6 +48,9 @@ import android.util.Log;
  */
 public class CheapMP3 extends CheapSoundFile {
     private static final String TAG = "CheapMP3";
+
+    // Set to log every frame as it's scanned
+    private static final boolean DEBUG = false;
     private static final int LAYER_I = 1;
     private static final int LAYER_III = 3;
 
@@ -61,34 +65,68 @@ public class CheapMP3 extends CheapSoundFile {
         };
     }
 
+    /**
+     * Returns a factory for a CheapMP3 that never decodes any audio.
+     * It only parses the frame headers and Layer III side info, and
+     * estimates each frame's volume from its global_gain and
+     * scalefac_compress fields, in the same spirit as CheapAAC.
+     */
+    public static Factory getSideInfoFactory() {
+        return new Factory() {
+            public CheapSoundFile create() {
+                CheapMP3 mp3 = new CheapMP3();
+                mp3.mSideInfoOnly = true;
+                return mp3;
+            }
+            public String[] getSupportedExtensions() {
+                return new String[] { "mp3" };
+            }
+        };
+    }
+
     // Member variables representing frame data
-    private int mNumFrames;
-    private int[] mFrameOffsets;
-    private int[] mFrameLens;
-    private int[] mFrameGains;
-    private int mFileSize;
+    private FrameIndex mFrames;
+    private long mFileSize;
     private int mAvgBitRate;
     private int mGlobalSampleRate;
     private int mGlobalChannels;
 
     // Member variables used during initialization
-    private int mMaxFrames;
     private int mBitrateSum;
-    private int mMinGain;
-    private int mMaxGain;
 
     private int mLayer;
     private int mVersion;
 
+    // If set, estimate gains from the side info instead of decoding
+    private boolean mSideInfoOnly;
+
+    // Used while scanning the side info: a window onto the file
+    private FileInputStream mStream;
+    private byte[] mBuffer;
+    private long mBufferOffset;
+    private int mBufferLen;
+
+    // Fields of the most recent header parsed by parseFrameHeader
+    private int mHeaderVersion;
+    private int mHeaderLayer;
+    private int mHeaderSampleRate;
+    private int mHeaderBitRate;
+    private int mHeaderChannels;
+    private boolean mHeaderHasCrc;
+
     public CheapMP3() {
     }
 
     public int getNumFrames() {
-        return mNumFrames;
+        return mFrames.size();
+    }
+
+    public FrameIndex getFrameIndex() {
+        return mFrames;
     }
 
-    public int[] getFrameOffsets() {
-        return mFrameOffsets;
+    public long[] getFrameOffsets() {
+        return mFrames.getOffsets();
     }
 
     public int getSamplesPerFrame() {
@@ -105,14 +143,14 @@ public class CheapMP3 extends CheapSoundFile {
     }
 
     public int[] getFrameLens() {
-        return mFrameLens;
+        return mFrames.getLens();
     }
 
     public int[] getFrameGains() {
-        return mFrameGains;
+        return mFrames.getGains();
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return mFileSize;        
     }
 
@@ -137,13 +175,13 @@ public class CheapMP3 extends CheapSoundFile {
      * so this method is supported to hear exactly what a "cut" of the file
      * sounds like without needing to actually save a file to disk first.
      */
-    public int getSeekableFrameOffset(int frame) {
+    public long getSeekableFrameOffset(int frame) {
         if (frame <= 0) {
             return 0;
-        } else if (frame >= mNumFrames) {
+        } else if (frame >= mFrames.size()) {
             return mFileSize;
         } else {
-            return mFrameOffsets[frame];
+            return mFrames.getOffset(frame);
         }
     }
 
@@ -151,24 +189,22 @@ public class CheapMP3 extends CheapSoundFile {
             throws java.io.FileNotFoundException,
             java.io.IOException {
         super.ReadFile(inputFile);
-        mNumFrames = 0;
-        mMaxFrames = 64;  // This will grow as needed
-        mFrameOffsets = new int[mMaxFrames];
-        mFrameLens = new int[mMaxFrames];
-        mFrameGains = new int[mMaxFrames];
+        mFrames = new FrameIndex();
         mBitrateSum = 0;
-        mMinGain = 255;
-        mMaxGain = 0;
 
-        // No need to handle filesizes larger than can fit in a 32-bit int
-        mFileSize = (int)mInputFile.length();
+        mFileSize = mInputFile.length();
+
+        if (mSideInfoOnly) {
+            readSideInfo();
+            return;
+        }
 
         FileInputStream stream = new FileInputStream(mInputFile);
 
         Decoder decoder = new Decoder();
         Bitstream bitstream = new Bitstream(stream);
 
-        int pos = 0;
+        long pos = 0;
         int gain = 0;
 
         try {
@@ -181,6 +217,7 @@ public class CheapMP3 extends CheapSoundFile {
             mVersion = header.version();
 
             while (true) {
+                reportFrames(mFrames.size(), false);
                 if (mProgressListener != null) {
                     boolean keepGoing = mProgressListener.reportProgress(
                             pos * 1.0 / mFileSize);
@@ -196,7 +233,9 @@ public class CheapMP3 extends CheapSoundFile {
                 double sum = 0.0f;
                 int k = 0;
                 int tmp;
-                Log.d(TAG, "pcm length = " + frame.getBufferLength());
+                if (DEBUG) {
+                    Log.d(TAG, "pcm length = " + frame.getBufferLength());
+                }
                 for (int j = 0; j < frame.getBufferLength(); j++) {
                     tmp = pcm[k] > 0 ? pcm[k] : -pcm[k];
                     sum += tmp / 32767.0f;
@@ -213,46 +252,13 @@ public class CheapMP3 extends CheapSoundFile {
                 mBitrateSum += bitRate;
 
                 int frameLen = header.calculate_framesize() + 4;
-                Log.d(TAG, "pos = " + pos);
-                Log.d(TAG, "frameLen = " + frameLen);
-                mFrameOffsets[mNumFrames] = pos;
-                mFrameLens[mNumFrames] = frameLen;
-                mFrameGains[mNumFrames] = gain;
-                if (gain < mMinGain)
-                    mMinGain = gain;
-                if (gain > mMaxGain)
-                    mMaxGain = gain;
-
-                mNumFrames++;
-                if (mNumFrames == mMaxFrames) {
-                    // We need to grow our arrays.  Rather than naively
-                    // doubling the array each time, we estimate the exact
-                    // number of frames we need and add 10% padding.  In
-                    // practice this seems to work quite well, only one
-                    // resize is ever needed, however to avoid pathological
-                    // cases we make sure to always double the size at a minimum.
-
-                    mAvgBitRate = mBitrateSum / mNumFrames;
-                    int totalFramesGuess =
-                        ((mFileSize / mAvgBitRate) * sampleRate) / 144000;
-                    int newMaxFrames = totalFramesGuess * 11 / 10;
-                    if (newMaxFrames < mMaxFrames * 2)
-                        newMaxFrames = mMaxFrames * 2;
-
-                    int[] newOffsets = new int[newMaxFrames];
-                    int[] newLens = new int[newMaxFrames];
-                    int[] newGains = new int[newMaxFrames];
-                    for (int i = 0; i < mNumFrames; i++) {
-                        newOffsets[i] = mFrameOffsets[i];
-                        newLens[i] = mFrameLens[i];
-                        newGains[i] = mFrameGains[i];
-                    }
-                    mFrameOffsets = newOffsets;
-                    mFrameLens = newLens;
-                    mFrameGains = newGains;
-                    mMaxFrames = newMaxFrames;
+                if (DEBUG) {
+                    Log.d(TAG, "pos = " + pos);
+                    Log.d(TAG, "frameLen = " + frameLen);
                 }
 
+                mFrames.add(pos, frameLen, gain);
+
                 header = bitstream.readFrame();
                 if (header == null)
                     break;
@@ -260,45 +266,369 @@ public class CheapMP3 extends CheapSoundFile {
                 pos += frameLen;
             }
         } catch (BitstreamException e) {
-                Log.e(TAG, "BitstreamException", e);
+            mStats.addDecodeErrors(1);
+            Log.e(TAG, "BitstreamException", e);
         } catch (DecoderException e) {
-                Log.e(TAG, "DecoderException", e);
+            mStats.addDecodeErrors(1);
+            Log.e(TAG, "DecoderException", e);
         } finally {
             if (stream != null)
                 stream.close();
         }
 
         // We're done reading the file, do some postprocessing
-        if (mNumFrames > 0)
-            mAvgBitRate = mBitrateSum / mNumFrames;
+        reportFrames(mFrames.size(), true);
+        mFrames.trimToSize();
+        if (mFrames.size() > 0)
+            mAvgBitRate = mBitrateSum / mFrames.size();
         else
             mAvgBitRate = 0;
     }
 
-    public void WriteFile(File outputFile, int startFrame, int numFrames)
+    String getCacheVariant() {
+        return super.getCacheVariant() + (mSideInfoOnly ? ":sideinfo" : "");
+    }
+
+    void writeCache(DataOutputStream out)
             throws java.io.IOException {
-        outputFile.createNewFile();
-        FileInputStream in = new FileInputStream(mInputFile);
-        FileOutputStream out = new FileOutputStream(outputFile);
-        int maxFrameLen = 0;
-        for (int i = 0; i < numFrames; i++) {
-            if (mFrameLens[startFrame + i] > maxFrameLen)
-                maxFrameLen = mFrameLens[startFrame + i];
+        out.writeLong(mFileSize);
+        out.writeInt(mAvgBitRate);
+        out.writeInt(mGlobalSampleRate);
+        out.writeInt(mGlobalChannels);
+        out.writeInt(mLayer);
+        out.writeInt(mVersion);
+        mFrames.write(out);
+    }
+
+    void readCache(DataInputStream in)
+            throws java.io.IOException {
+        mFileSize = in.readLong();
+        mAvgBitRate = in.readInt();
+        mGlobalSampleRate = in.readInt();
+        mGlobalChannels = in.readInt();
+        mLayer = in.readInt();
+        mVersion = in.readInt();
+        mFrames = FrameIndex.read(in);
+    }
+
+    /**
+     * Scans the file without decoding it: each frame header is parsed
+     * to find the next frame, and for Layer III frames the side info is
+     * parsed to estimate the volume.  No Huffman decoding or synthesis
+     * is done, so this is many times faster than ReadFile's decode.
+     */
+    private void readSideInfo()
+            throws java.io.IOException {
+        mStream = new FileInputStream(mInputFile);
+        mBuffer = new byte[65536];
+        mBufferOffset = 0;
+        mBufferLen = 0;
+
+        try {
+            long pos = skipId3v2Tag();
+            int gain = 0;
+            boolean inSync = false;
+            while (fill(pos, 4) >= 4) {
+                reportFrames(mFrames.size(), false);
+                if (mProgressListener != null) {
+                    boolean keepGoing = mProgressListener.reportProgress(
+                        pos * 1.0 / mFileSize);
+                    if (!keepGoing) {
+                        break;
+                    }
+                }
+
+                int frameLen = parseFrameHeader(pos);
+                int version = mHeaderVersion;
+                int layer = mHeaderLayer;
+                int sampleRate = mHeaderSampleRate;
+                int bitRate = mHeaderBitRate;
+                int channels = mHeaderChannels;
+                boolean hasCrc = mHeaderHasCrc;
+
+                // When we've lost sync, don't trust a header unless the
+                // next frame starts right where it says it will.
+                if (frameLen > 0 && !inSync &&
+                    fill(pos + frameLen, 4) >= 4 &&
+                    parseFrameHeader(pos + frameLen) <= 0) {
+                    frameLen = 0;
+                }
+                if (frameLen <= 0) {
+                    inSync = false;
+                    pos++;
+                    continue;
+                }
+                inSync = true;
+
+                if (layer == LAYER_III &&
+                    fill(pos, SIDE_INFO_MAX_BYTES) >= SIDE_INFO_MAX_BYTES) {
+                    gain = sideInfoGain(pos, version, channels, hasCrc);
+                }
+
+                mLayer = layer;
+                mVersion = version;
+                mGlobalSampleRate = sampleRate;
+                mGlobalChannels = channels;
+                mBitrateSum += bitRate;
+                mFrames.add(pos, frameLen, gain);
+
+                pos += frameLen;
+            }
+        } finally {
+            mStream.close();
+            mStream = null;
+            mBuffer = null;
         }
-        byte[] buffer = new byte[maxFrameLen];
-        int pos = 0;
-        for (int i = 0; i < numFrames; i++) {
-            int skip = mFrameOffsets[startFrame + i] - pos;
-            int len = mFrameLens[startFrame + i];
-            if (skip > 0) {
-                in.skip(skip);
-                pos += skip;
+
+        reportFrames(mFrames.size(), true);
+        mFrames.trimToSize();
+        if (mFrames.size() > 0)
+            mAvgBitRate = mBitrateSum / mFrames.size();
+        else
+            mAvgBitRate = 0;
+    }
+
+    /**
+     * Makes sure that bytes [pos, pos + len) of the file are in mBuffer,
+     * reading more of the file if needed.  Positions only move forward,
+     * so anything before pos can be discarded.  Returns the number of
+     * those bytes available, which is less than len near end of file.
+     */
+    private int fill(long pos, int len)
+            throws java.io.IOException {
+        long end = mBufferOffset + mBufferLen;
+        if (pos < mBufferOffset || pos > end) {
+            // Jumping forward past the buffer, start over at pos
+            mStream.getChannel().position(pos);
+            mBufferOffset = pos;
+            mBufferLen = 0;
+        } else if (pos + len > end) {
+            // Keep what we still need and top up the buffer
+            int keep = (int)(end - pos);
+            System.arraycopy(mBuffer, (int)(pos - mBufferOffset),
+                             mBuffer, 0, keep);
+            mBufferOffset = pos;
+            mBufferLen = keep;
+        }
+        while (mBufferLen < len) {
+            int count = mStream.read(
+                mBuffer, mBufferLen, mBuffer.length - mBufferLen);
+            if (count <= 0) {
+                break;
+            }
+            mBufferLen += count;
+        }
+        long available = mBufferOffset + mBufferLen - pos;
+        return available < len ? (int)available : len;
+    }
+
+    private int bufferByte(long pos) {
+        return 0xff & mBuffer[(int)(pos - mBufferOffset)];
+    }
+
+    /**
+     * Returns the offset of the first byte after an ID3v2 tag at the
+     * start of the file, or 0 if there isn't one.
+     */
+    private int skipId3v2Tag()
+            throws java.io.IOException {
+        if (fill(0, 10) < 10 ||
+            bufferByte(0) != 'I' ||
+            bufferByte(1) != 'D' ||
+            bufferByte(2) != '3') {
+            return 0;
+        }
+        int size =
+            ((0x7f & bufferByte(6)) << 21) |
+            ((0x7f & bufferByte(7)) << 14) |
+            ((0x7f & bufferByte(8)) << 7) |
+            ((0x7f & bufferByte(9)));
+        int footer = ((bufferByte(5) & 0x10) != 0) ? 10 : 0;
+        return 10 + size + footer;
+    }
+
+    /**
+     * If there's a valid MPEG audio frame header at pos (which must
+     * already be in the buffer), stores its fields in mHeader* and
+     * returns the length of the frame in bytes; otherwise returns 0.
+     */
+    private int parseFrameHeader(long pos) {
+        int b1 = bufferByte(pos + 1);
+        int b2 = bufferByte(pos + 2);
+        int b3 = bufferByte(pos + 3);
+        if (bufferByte(pos) != 0xff || (b1 & 0xe0) != 0xe0) {
+            return 0;
+        }
+
+        int versionBits = (b1 >> 3) & 0x03;
+        int layerBits = (b1 >> 1) & 0x03;
+        int bitrateIndex = (b2 >> 4) & 0x0f;
+        int sampleRateIndex = (b2 >> 2) & 0x03;
+        int padding = (b2 >> 1) & 0x01;
+        if (versionBits == 1 || layerBits == 0 ||
+            bitrateIndex == 0 || bitrateIndex == 15 ||
+            sampleRateIndex == 3) {
+            return 0;
+        }
+
+        int layer = 4 - layerBits;
+        int version;
+        int sampleRate = SAMPLE_RATES[sampleRateIndex];
+        int bitRate;
+        if (versionBits == 3) {
+            version = Header.MPEG1;
+            bitRate = BITRATES_MPEG1[layer - 1][bitrateIndex];
+        } else {
+            version = (versionBits == 2) ? Header.MPEG2_LSF : Header.MPEG25_LSF;
+            sampleRate /= (versionBits == 2) ? 2 : 4;
+            bitRate = BITRATES_MPEG2[layer == LAYER_I ? 0 : 1][bitrateIndex];
+        }
+
+        int frameLen;
+        if (layer == LAYER_I) {
+            frameLen = (12000 * bitRate / sampleRate + padding) * 4;
+        } else if (layer == LAYER_III && version != Header.MPEG1) {
+            frameLen = 72000 * bitRate / sampleRate + padding;
+        } else {
+            frameLen = 144000 * bitRate / sampleRate + padding;
+        }
+
+        mHeaderVersion = version;
+        mHeaderLayer = layer;
+        mHeaderSampleRate = sampleRate;
+        mHeaderBitRate = bitRate;
+        mHeaderChannels = (((b3 >> 6) & 0x03) == 3) ? 1 : 2;
+        mHeaderHasCrc = ((b1 & 0x01) == 0);
+        return frameLen;
+    }
+
+    /**
+     * Estimates the volume of a Layer III frame from its side info.
+     * For each granule and channel, global_gain sets the quantizer step
+     * size (1.5 dB per unit), and the scalefactors then attenuate each
+     * band by up to 2^slen - 1 steps of 3 dB.  We don't read the
+     * scalefactors themselves, so we assume they use about half of the
+     * range that scalefac_compress allows.  Granules with no Huffman
+     * data are silent.  Returns the average over granules and channels,
+     * which fits in 0 - 255.
+     */
+    private int sideInfoGain(long pos, int version, int channels,
+                             boolean hasCrc) {
+        int bit = (int)(pos + 4 + (hasCrc ? 2 : 0) - mBufferOffset) * 8;
+        int numGranules;
+        int scalefacCompressBits;
+        if (version == Header.MPEG1) {
+            numGranules = 2;
+            scalefacCompressBits = 4;
+            // main_data_begin, private_bits, scfsi
+            bit += 9 + ((channels == 1) ? 5 : 3) + 4 * channels;
+        } else {
+            numGranules = 1;
+            scalefacCompressBits = 9;
+            // main_data_begin, private_bits
+            bit += 8 + ((channels == 1) ? 1 : 2);
+        }
+
+        int sum = 0;
+        for (int gr = 0; gr < numGranules; gr++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int part23Length = readBits(bit, 12);
+                int globalGain = readBits(bit + 21, 8);
+                int scalefacCompress =
+                    readBits(bit + 29, scalefacCompressBits);
+                bit += 29 + scalefacCompressBits;
+                // window switching, block or table info, region counts,
+                // then preflag (MPEG-1 only), scalefac_scale and
+                // count1table_select
+                bit += (version == Header.MPEG1) ? 26 : 25;
+
+                if (part23Length == 0) {
+                    continue;
+                }
+                int slen = maxScalefacBits(version, scalefacCompress);
+                int gain = globalGain - ((1 << slen) - 1);
+                if (gain > 0) {
+                    sum += gain;
+                }
             }
-            in.read(buffer, 0, len);
-            out.write(buffer, 0, len);
-            pos += len;
         }
-        in.close();
-        out.close();
+        return sum / (numGranules * channels);
+    }
+
+    private int readBits(int bit, int numBits) {
+        int value = 0;
+        for (int i = 0; i < numBits; i++) {
+            int b = bit + i;
+            value = (value << 1) | ((mBuffer[b >> 3] >> (7 - (b & 7))) & 1);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the widest scalefactor, in bits, that scalefac_compress
+     * allows for this granule (ISO 11172-3 and ISO 13818-3).
+     */
+    private static int maxScalefacBits(int version, int scalefacCompress) {
+        if (version == Header.MPEG1) {
+            return Math.max(SLEN1[scalefacCompress], SLEN2[scalefacCompress]);
+        }
+        int slen1;
+        int slen2;
+        int slen3;
+        if (scalefacCompress < 400) {
+            slen1 = (scalefacCompress >> 4) / 5;
+            slen2 = (scalefacCompress >> 4) % 5;
+            slen3 = (scalefacCompress & 15) >> 2;
+        } else if (scalefacCompress < 500) {
+            scalefacCompress -= 400;
+            slen1 = (scalefacCompress >> 2) / 5;
+            slen2 = (scalefacCompress >> 2) % 5;
+            slen3 = scalefacCompress & 3;
+        } else {
+            scalefacCompress -= 500;
+            slen1 = scalefacCompress / 3;
+            slen2 = scalefacCompress % 3;
+            slen3 = 0;
+        }
+        return Math.max(slen1, Math.max(slen2, slen3));
+    }
+
+    // The most bytes we need to look at for the header and side info:
+    // 4 header bytes, 2 CRC bytes, and 32 bytes of MPEG-1 stereo side info.
+    private static final int SIDE_INFO_MAX_BYTES = 38;
+
+    private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    private static final int[][] BITRATES_MPEG1 = {
+        { 0, 32, 64, 96, 128, 160, 192, 224,
+          256, 288, 320, 352, 384, 416, 448, 0 },
+        { 0, 32, 48, 56, 64, 80, 96, 112,
+          128, 160, 192, 224, 256, 320, 384, 0 },
+        { 0, 32, 40, 48, 56, 64, 80, 96,
+          112, 128, 160, 192, 224, 256, 320, 0 } };
+
+    private static final int[][] BITRATES_MPEG2 = {
+        { 0, 32, 48, 56, 64, 80, 96, 112,
+          128, 144, 160, 176, 192, 224, 256, 0 },
+        { 0, 8, 16, 24, 32, 40, 48, 56,
+          64, 80, 96, 112, 128, 144, 160, 0 } };
+
+    private static final int[] SLEN1 = {
+        0, 0, 0, 0, 3, 1, 1, 1, 2, 2, 2, 3, 3, 3, 4, 4 };
+    private static final int[] SLEN2 = {
+        0, 1, 2, 3, 0, 1, 2, 3, 1, 2, 3, 1, 2, 3, 2, 3 };
+
+    protected CheapSoundFile newSlice(FrameIndex frames,
+                                      long headerLen, long dataLen) {
+        CheapMP3 slice = new CheapMP3();
+        slice.mFrames = frames;
+        slice.mFileSize = headerLen + dataLen;
+        slice.mAvgBitRate = mAvgBitRate;
+        slice.mGlobalSampleRate = mGlobalSampleRate;
+        slice.mGlobalChannels = mGlobalChannels;
+        slice.mLayer = mLayer;
+        slice.mVersion = mVersion;
+        slice.mSideInfoOnly = mSideInfoOnly;
+        return slice;
     }
 };
@@ -16,8 +16,20 @@
 
 package com.ringdroid.soundfile;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -47,6 +59,19 @@ public class CheapSoundFile {
         boolean reportProgress(double fractionComplete);
     }
 
+    public interface FrameListener {
+        /**
+         * Will be called by the CheapSoundFile subclass on the thread
+         * that's scanning the file, in order, with the gains of frames
+         * [startFrame, startFrame + gains.length) as soon as they're
+         * known, so that they can be shown before the whole file has
+         * been read.  The gains array belongs to the listener.  Not
+         * called for files whose frames come from the frame cache.
+         */
+        void framesScanned(CheapSoundFile soundFile,
+                           int startFrame, int[] gains);
+    }
+
     public interface Factory {
         public CheapSoundFile create();
         public String[] getSupportedExtensions();
@@ -59,9 +84,17 @@ public class CheapSoundFile {
         CheapWAV.getFactory(),
     };
 
+    // Subclasses that open a file much faster than the ones above, at
+    // the cost of a rougher estimate of the volume of each frame.
+    static Factory[] sFastSubclassFactories = new Factory[] {
+        CheapMP3.getSideInfoFactory(),
+    };
+
     static ArrayList<String> sSupportedExtensions = new ArrayList<String>();
     static HashMap<String, Factory> sExtensionMap =
         new HashMap<String, Factory>();
+    static HashMap<String, Factory> sFastExtensionMap =
+        new HashMap<String, Factory>();
 
     static {
         for (Factory f : sSubclassFactories) {
@@ -70,6 +103,11 @@ public class CheapSoundFile {
                 sExtensionMap.put(extension, f);
             }
         }
+        for (Factory f : sFastSubclassFactories) {
+            for (String extension : f.getSupportedExtensions()) {
+                sFastExtensionMap.put(extension, f);
+            }
+        }
     }
 
 	/**
@@ -82,6 +120,49 @@ public class CheapSoundFile {
                                         ProgressListener progressListener)
         throws java.io.FileNotFoundException,
                java.io.IOException {
+        return create(fileName, progressListener, null, false);
+    }
+
+	/**
+	 * Like create(fileName, progressListener), but if fastScan is true
+	 * and there's a fast subclass for this type of file, use it instead.
+	 */
+    public static CheapSoundFile create(String fileName,
+                                        ProgressListener progressListener,
+                                        boolean fastScan)
+        throws java.io.FileNotFoundException,
+               java.io.IOException {
+        return create(fileName, progressListener, null, fastScan);
+    }
+
+	/**
+	 * Like create(fileName, progressListener, fastScan), also passing
+	 * the gains of each batch of frames to frameListener as the file
+	 * is scanned.
+	 */
+    public static CheapSoundFile create(String fileName,
+                                        ProgressListener progressListener,
+                                        FrameListener frameListener,
+                                        boolean fastScan)
+        throws java.io.FileNotFoundException,
+               java.io.IOException {
+        return create(fileName, progressListener, frameListener,
+                      fastScan, false);
+    }
+
+	/**
+	 * Like create(fileName, progressListener, frameListener, fastScan),
+	 * but if lazyGains is true and the subclass can find its frames
+	 * without reading them, only do that, as in ReadFrameIndex.  Check
+	 * hasAllGains() to see whether computeGains needs to be called.
+	 */
+    public static CheapSoundFile create(String fileName,
+                                        ProgressListener progressListener,
+                                        FrameListener frameListener,
+                                        boolean fastScan,
+                                        boolean lazyGains)
+        throws java.io.FileNotFoundException,
+               java.io.IOException {
         File f = new File(fileName);
         if (!f.exists()) {
             throw new java.io.FileNotFoundException(fileName);
@@ -91,16 +172,106 @@ public class CheapSoundFile {
         if (components.length < 2) {
             return null;
         }
-        Factory factory = sExtensionMap.get(components[components.length - 1]);
+        String extension = components[components.length - 1];
+        Factory factory = null;
+        if (fastScan) {
+            factory = sFastExtensionMap.get(extension);
+        }
+        if (factory == null) {
+            factory = sExtensionMap.get(extension);
+        }
         if (factory == null) {
             return null;
         }
         CheapSoundFile soundFile = factory.create();
         soundFile.setProgressListener(progressListener);
-        soundFile.ReadFile(f);
+        soundFile.setFrameListener(frameListener);
+
+        ScanStats stats = soundFile.mStats;
+        FrameCache cache = sFrameCache;
+        long startTime = System.nanoTime();
+        if (cache != null && cache.read(f, soundFile)) {
+            stats.addPhaseTime(ScanStats.PHASE_CACHE,
+                               System.nanoTime() - startTime);
+            return soundFile;
+        }
+
+        // Only cache the file if the scan wasn't cancelled part way.
+        // Files with gains left to compute are cached by computeGains
+        // once it's done them all.
+        CancelWatcher watcher = new CancelWatcher(progressListener);
+        soundFile.setProgressListener(watcher);
+        startTime = System.nanoTime();
+        if (lazyGains) {
+            soundFile.ReadFrameIndex(f);
+        } else {
+            soundFile.ReadFile(f);
+        }
+        stats.addPhaseTime(ScanStats.PHASE_INDEX,
+                           System.nanoTime() - startTime);
+        if (soundFile.hasAllGains()) {
+            int numFrames = soundFile.getNumFrames();
+            stats.addFrames(numFrames, soundFile.getFrameIndex().getTotalLen(
+                                0, numFrames));
+        }
+        soundFile.setProgressListener(progressListener);
+        if (cache != null && !watcher.mCancelled && soundFile.hasAllGains()) {
+            cache.write(f, soundFile);
+        }
         return soundFile;
     }
 
+    static FrameCache sFrameCache = null;
+
+    /**
+     * Keeps the frame tables of files that have been scanned in the
+     * given directory, using no more than maxBytes, so that create()
+     * can open them again without rescanning.  A null dir turns the
+     * cache off.
+     */
+    public static void setCacheDir(File dir, long maxBytes) {
+        sFrameCache = (dir == null) ? null : new FrameCache(dir, maxBytes);
+    }
+
+    /**
+     * Passes progress through to another listener, remembering whether
+     * it ever asked us to stop.
+     */
+    static class CancelWatcher implements ProgressListener {
+        ProgressListener mListener;
+        volatile boolean mCancelled = false;
+
+        CancelWatcher(ProgressListener listener) {
+            mListener = listener;
+        }
+
+        public boolean reportProgress(double fractionComplete) {
+            if (mListener == null) {
+                return true;
+            }
+            boolean keepGoing = mListener.reportProgress(fractionComplete);
+            if (!keepGoing) {
+                mCancelled = true;
+            }
+            return keepGoing;
+        }
+    }
+
+    static int sScanThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Sets how many threads may be used to scan a file whose frames can
+     * be analyzed independently of each other.  Defaults to the number
+     * of processors; 1 scans every file on the calling thread.
+     */
+    public static void setScanThreads(int numThreads) {
+        sScanThreads = (numThreads < 1) ? 1 : numThreads;
+    }
+
+    public static int getScanThreads() {
+        return sScanThreads;
+    }
+
     public static boolean isFilenameSupported(String filename) {
         String[] components = filename.toLowerCase().split("\\.");
         if (components.length < 2) {
@@ -118,8 +289,29 @@ public class CheapSoundFile {
             new String[sSupportedExtensions.size()]);
     }
 
+    // Frames are passed to the FrameListener in batches of at least
+    // this many, so that it isn't called for every frame.
+    static final int FRAME_BATCH_SIZE = 256;
+
+    // Gains are computed GAIN_CHUNK_FRAMES frames at a time for files
+    // read with ReadFrameIndex.
+    public static final int GAIN_CHUNK_FRAMES = 256;
+
+    // WriteFiles reads the input this many bytes at a time.
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
     protected ProgressListener mProgressListener = null;
+    protected FrameListener mFrameListener = null;
     protected File mInputFile = null;
+    protected final ScanStats mStats = new ScanStats();
+    private int mFramesReported = 0;
+
+    // Which chunks of frames have their gains after ReadFrameIndex, or
+    // null if they all do.  Guarded by this; mGainScanLock is held
+    // while computing them, so hasGains doesn't wait on a scan.
+    private boolean[] mGainChunksDone = null;
+    private int mNumGainChunksLeft = 0;
+    private final Object mGainScanLock = new Object();
 
     protected CheapSoundFile() {
     }
@@ -128,12 +320,209 @@ public class CheapSoundFile {
         throws java.io.FileNotFoundException,
                java.io.IOException {
         mInputFile = inputFile;
+        mFramesReported = 0;
+    }
+
+    /**
+     * Like ReadFile, but for subclasses that can find where every frame
+     * is without reading the frames, only does that, leaving every gain
+     * at 0 until computeGains is called for it.  Other subclasses just
+     * read the whole file.
+     */
+    public void ReadFrameIndex(File inputFile)
+        throws java.io.FileNotFoundException,
+               java.io.IOException {
+        ReadFile(inputFile);
+    }
+
+    /**
+     * Called by subclasses at the end of ReadFrameIndex if they've left
+     * the gains to be computed later by scanGains.
+     */
+    protected synchronized void deferGains() {
+        int numChunks =
+            (getNumFrames() + GAIN_CHUNK_FRAMES - 1) / GAIN_CHUNK_FRAMES;
+        mGainChunksDone = numChunks > 0 ? new boolean[numChunks] : null;
+        mNumGainChunksLeft = numChunks;
+    }
+
+    /**
+     * Computes the gains of frames [startFrame, endFrame), for
+     * computeGains.  Only called by one thread at a time.
+     */
+    void scanGains(int startFrame, int endFrame)
+            throws java.io.IOException {
+    }
+
+    public synchronized boolean hasAllGains() {
+        return mGainChunksDone == null;
+    }
+
+    /**
+     * Returns true if the gains of frames [startFrame, endFrame) have
+     * all been computed.
+     */
+    public synchronized boolean hasGains(int startFrame, int endFrame) {
+        if (mGainChunksDone == null) {
+            return true;
+        }
+        int firstChunk = Math.max(startFrame, 0) / GAIN_CHUNK_FRAMES;
+        int endChunk = Math.min(
+            (endFrame + GAIN_CHUNK_FRAMES - 1) / GAIN_CHUNK_FRAMES,
+            mGainChunksDone.length);
+        for (int chunk = firstChunk; chunk < endChunk; chunk++) {
+            if (!mGainChunksDone[chunk]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first frame at or after startFrame that doesn't have
+     * its gain yet, or the first such frame before it if there are none
+     * after it, or -1 if every frame has its gain.  The frame returned
+     * is always the first of a chunk of GAIN_CHUNK_FRAMES.
+     */
+    public synchronized int nextFrameWithoutGain(int startFrame) {
+        if (mGainChunksDone == null) {
+            return -1;
+        }
+        int numChunks = mGainChunksDone.length;
+        int firstChunk = Math.max(startFrame, 0) / GAIN_CHUNK_FRAMES;
+        for (int i = 0; i < numChunks; i++) {
+            int chunk = (firstChunk + i) % numChunks;
+            if (!mGainChunksDone[chunk]) {
+                return chunk * GAIN_CHUNK_FRAMES;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes sure the gains of frames [startFrame, endFrame) have been
+     * computed, for a file read with ReadFrameIndex.  Safe to call from
+     * any thread; if two threads ask for the same frames, one of them
+     * waits for the other.  Once every frame has its gain, the file is
+     * saved in the frame cache as if ReadFile had read it.
+     */
+    public void computeGains(int startFrame, int endFrame)
+            throws java.io.IOException {
+        synchronized (mGainScanLock) {
+            int numFrames = getNumFrames();
+            if (startFrame < 0) {
+                startFrame = 0;
+            }
+            if (endFrame > numFrames) {
+                endFrame = numFrames;
+            }
+            int chunkStart = startFrame - startFrame % GAIN_CHUNK_FRAMES;
+            for (; chunkStart < endFrame; chunkStart += GAIN_CHUNK_FRAMES) {
+                if (hasGains(chunkStart, chunkStart + 1)) {
+                    continue;
+                }
+                int chunkEnd = Math.min(chunkStart + GAIN_CHUNK_FRAMES,
+                                        numFrames);
+                long startTime = System.nanoTime();
+                scanGains(chunkStart, chunkEnd);
+                mStats.addPhaseTime(ScanStats.PHASE_GAINS,
+                                    System.nanoTime() - startTime);
+                // Bytes shared by frames in two chunks count in the first
+                FrameIndex frames = getFrameIndex();
+                int firstOwn = chunkStart;
+                if (firstOwn > 0 &&
+                    frames.nextFrameAfter(firstOwn - 1) > firstOwn) {
+                    firstOwn = frames.nextFrameAfter(firstOwn);
+                }
+                mStats.addFrames(chunkEnd - chunkStart,
+                                 firstOwn < chunkEnd ?
+                                 frames.getTotalLen(firstOwn, chunkEnd - firstOwn) : 0);
+                if (gainChunkDone(chunkStart / GAIN_CHUNK_FRAMES)) {
+                    FrameCache cache = sFrameCache;
+                    if (cache != null) {
+                        cache.write(mInputFile, this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks a chunk as done, returning true if it was the last one.
+     */
+    private synchronized boolean gainChunkDone(int chunk) {
+        mGainChunksDone[chunk] = true;
+        mNumGainChunksLeft--;
+        if (mNumGainChunksLeft == 0) {
+            mGainChunksDone = null;
+            return true;
+        }
+        return false;
     }
 
     public void setProgressListener(ProgressListener progressListener) {
         mProgressListener = progressListener;
     }
 
+    public void setFrameListener(FrameListener frameListener) {
+        mFrameListener = frameListener;
+    }
+
+    /**
+     * Returns the counters for how this file was scanned, which keep
+     * going up as computeGains fills in gains.
+     */
+    public ScanStats getScanStats() {
+        return mStats;
+    }
+
+    /**
+     * Called by subclasses as their scan moves through the file, once
+     * the gains of frames [0, numFramesScanned) are final.  Passes the
+     * ones the frame listener hasn't seen yet on to it when there are
+     * at least FRAME_BATCH_SIZE of them, or any at all if done is true.
+     */
+    protected void reportFrames(int numFramesScanned, boolean done) {
+        int numFrames = numFramesScanned - mFramesReported;
+        if (mFrameListener == null || numFrames <= 0 ||
+            (numFrames < FRAME_BATCH_SIZE && !done)) {
+            return;
+        }
+        FrameIndex frames = getFrameIndex();
+        int startFrame = mFramesReported;
+        int[] gains = new int[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            gains[i] = frames.getGain(startFrame + i);
+        }
+        mFramesReported = numFramesScanned;
+        mFrameListener.framesScanned(this, startFrame, gains);
+    }
+
+    /**
+     * Identifies how this object scans files, so that FrameCache keeps
+     * the results of different scanners apart.
+     */
+    String getCacheVariant() {
+        return getClass().getName();
+    }
+
+    /**
+     * Writes everything needed to rebuild this object after ReadFile,
+     * other than mInputFile, for FrameCache.
+     */
+    void writeCache(DataOutputStream out)
+            throws java.io.IOException {
+        throw new java.io.IOException("Caching not supported");
+    }
+
+    /**
+     * Restores the state written by writeCache, instead of ReadFile.
+     */
+    void readCache(DataInputStream in)
+            throws java.io.IOException {
+        throw new java.io.IOException("Caching not supported");
+    }
+
     public int getNumFrames() {
         return 0;
     }
@@ -142,7 +531,15 @@ public class CheapSoundFile {
         return 0;
     }
 
-    public int[] getFrameOffsets() {
+    /**
+     * Returns the offset, length and gain of every frame.  The int[]
+     * getters below build new arrays from it on every call.
+     */
+    public FrameIndex getFrameIndex() {
+        return null;
+    }
+
+    public long[] getFrameOffsets() {
         return null;
     }
 
@@ -154,7 +551,7 @@ public class CheapSoundFile {
         return null;
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return 0;
     }
 
@@ -180,10 +577,23 @@ public class CheapSoundFile {
      * the header, this returns the byte offset of the given frame,
      * otherwise returns -1.
      */
-    public int getSeekableFrameOffset(int frame) {
+    public long getSeekableFrameOffset(int frame) {
         return -1;
     }
 
+    /**
+     * Decodes frames [startFrame, startFrame + numFrames) into out as
+     * 16-bit samples, with the samples of each channel interleaved,
+     * starting at out's position and advancing it.  Stops early if out
+     * fills up or the file ends.  Returns the number of samples (not
+     * sample frames) written.  Formats that can't be decoded throw an
+     * IOException.
+     */
+    public int readPcm(int startFrame, int numFrames, ShortBuffer out)
+            throws java.io.IOException {
+        throw new java.io.IOException("Decoding not supported");
+    }
+
     private static final char[] HEX_CHARS = {
         '0', '1', '2', '3', '4', '5', '6', '7',
         '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
@@ -200,19 +610,18 @@ public class CheapSoundFile {
             throws java.io.FileNotFoundException,
                    java.io.IOException,
                    java.security.NoSuchAlgorithmException {
-        int[] frameOffsets = getFrameOffsets();
-        int[] frameLens = getFrameLens();
-        int numFrames = frameLens.length;
+        FrameIndex frames = getFrameIndex();
+        int numFrames = getNumFrames();
         if (numFrames > 10) {
             numFrames = 10;
         }
 
         MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
         FileInputStream in = new FileInputStream(mInputFile);
-        int pos = 0;
+        long pos = 0;
         for (int i = 0; i < numFrames; i++) {
-            int skip = frameOffsets[i] - pos;
-            int len = frameLens[i];
+            long skip = frames.getOffset(i) - pos;
+            int len = frames.getLen(i);
             if (skip > 0) {
                 in.skip(skip);
                 pos += skip;
@@ -229,5 +638,463 @@ public class CheapSoundFile {
 
     public void WriteFile(File outputFile, int startFrame, int numFrames)
             throws java.io.IOException {
+        WriteFile(outputFile, new int[] { startFrame }, new int[] { numFrames });
+    }
+
+    /**
+     * Writes several ranges of frames one after the other into a single
+     * output file: range i starts at frame startFrames[i] and has
+     * numFrames[i] frames.  The container header is written once for
+     * all of them, and the frames are copied in the order given, so
+     * ranges in file order are copied in one pass over the input.
+     */
+    public void WriteFile(File outputFile, int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
+        outputFile.createNewFile();
+        FileOutputStream out = new FileOutputStream(outputFile);
+        try {
+            WriteFile(out.getChannel(), startFrames, numFrames);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void WriteFile(OutputStream out, int startFrame, int numFrames)
+            throws java.io.IOException {
+        WriteFile(out, new int[] { startFrame }, new int[] { numFrames });
+    }
+
+    /**
+     * Writes the given ranges of frames to out, like WriteFile does to
+     * a file, and leaves out open.  A FileOutputStream is written
+     * through its channel, and anything else through
+     * Channels.newChannel.
+     */
+    public void WriteFile(OutputStream out, int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
+        if (out instanceof FileOutputStream) {
+            WriteFile(((FileOutputStream)out).getChannel(),
+                      startFrames, numFrames);
+        } else {
+            WriteFile(Channels.newChannel(out), startFrames, numFrames);
+            out.flush();
+        }
+    }
+
+    public void WriteFile(WritableByteChannel out,
+                          int startFrame, int numFrames)
+            throws java.io.IOException {
+        WriteFile(out, new int[] { startFrame }, new int[] { numFrames });
+    }
+
+    /**
+     * Writes the given ranges of frames to out, like WriteFile does to
+     * a file, and leaves out open.  The header is worked out from the
+     * frame table before anything is written, so out doesn't need to
+     * be seekable: it can be a pipe, a socket or a descriptor from a
+     * content provider.  It does need to be in blocking mode.
+     */
+    public void WriteFile(WritableByteChannel out,
+                          int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
+        if (out instanceof SelectableChannel &&
+            !((SelectableChannel)out).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+        java.io.ByteArrayOutputStream header =
+            new java.io.ByteArrayOutputStream();
+        writeHeader(header, startFrames, numFrames);
+        ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        copyFrames(out, startFrames, numFrames);
+    }
+
+    /**
+     * Writes one file per clip, with what WriteFile(outputFiles[i],
+     * startFrames[i], numFrames[i]) would write, while reading the
+     * input only once.  The byte ranges of all the clips are sorted by
+     * where they start, then the input is read from start to end
+     * through a single buffer and each part of it is written to every
+     * output that needs it, so the reading grows with the size of the
+     * input and not with the number of clips cut from it.
+     */
+    public void WriteFiles(File[] outputFiles,
+                           int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
+        int numClips = outputFiles.length;
+        FileOutputStream[] outs = new FileOutputStream[numClips];
+        FileInputStream in = null;
+        try {
+            long[][] clipRanges = new long[numClips][];
+            int numRanges = 0;
+            for (int c = 0; c < numClips; c++) {
+                int[] clipStart = new int[] { startFrames[c] };
+                int[] clipFrames = new int[] { numFrames[c] };
+                outputFiles[c].createNewFile();
+                outs[c] = new FileOutputStream(outputFiles[c]);
+                writeHeader(outs[c], clipStart, clipFrames);
+                clipRanges[c] = getByteRanges(clipStart, clipFrames);
+                numRanges += clipRanges[c].length / 2;
+            }
+
+            final long[] rangeStarts = new long[numRanges];
+            long[] rangeEnds = new long[numRanges];
+            int[] rangeClips = new int[numRanges];
+            Integer[] order = new Integer[numRanges];
+            int r = 0;
+            for (int c = 0; c < numClips; c++) {
+                for (int i = 0; i < clipRanges[c].length; i += 2) {
+                    rangeStarts[r] = clipRanges[c][i];
+                    rangeEnds[r] = clipRanges[c][i + 1];
+                    rangeClips[r] = c;
+                    order[r] = r;
+                    r++;
+                }
+            }
+            java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    long diff = rangeStarts[a] - rangeStarts[b];
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+
+            // Ranges are made active, in order, once the buffer reaches
+            // them, and each clip's ranges don't overlap, so every
+            // output gets its bytes in the right order.
+            in = new FileInputStream(mInputFile);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(EXPORT_BUFFER_SIZE);
+            byte[] bytes = buffer.array();
+            int[] active = new int[numRanges];
+            int numActive = 0;
+            int next = 0;
+            long pos = 0;
+            while (next < numRanges || numActive > 0) {
+                if (numActive == 0 && pos < rangeStarts[order[next]]) {
+                    pos = rangeStarts[order[next]];
+                }
+                long bufferEnd = pos + EXPORT_BUFFER_SIZE;
+                while (next < numRanges &&
+                       rangeStarts[order[next]] < bufferEnd) {
+                    active[numActive++] = order[next++];
+                }
+
+                buffer.clear();
+                int len = channel.read(buffer, pos);
+                if (len <= 0) {
+                    break;
+                }
+                long readEnd = pos + len;
+
+                int stillActive = 0;
+                for (int i = 0; i < numActive; i++) {
+                    int a = active[i];
+                    long from = Math.max(rangeStarts[a], pos);
+                    long to = Math.min(rangeEnds[a], readEnd);
+                    if (from < to) {
+                        outs[rangeClips[a]].write(
+                            bytes, (int)(from - pos), (int)(to - from));
+                    }
+                    if (rangeEnds[a] > readEnd) {
+                        active[stillActive++] = a;
+                    }
+                }
+                numActive = stillActive;
+                pos = readEnd;
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            for (int c = 0; c < numClips; c++) {
+                if (outs[c] != null) {
+                    outs[c].close();
+                }
+            }
+        }
+    }
+
+    public CheapSoundFile createSlice(File outputFile,
+                                      int startFrame, int numFrames)
+            throws java.io.IOException {
+        return createSlice(outputFile,
+                           new int[] { startFrame }, new int[] { numFrames });
+    }
+
+    /**
+     * Returns a CheapSoundFile for outputFile, which WriteFile has just
+     * written with the given ranges of frames.  Its frames, gains and
+     * format are worked out from this file instead of by scanning the
+     * new one, and the new file is only checked for the right length,
+     * the right header and the right bytes at the start of a few
+     * frames.  Throws an IOException if it fails those checks.
+     */
+    public CheapSoundFile createSlice(File outputFile,
+                                      int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
+        java.io.ByteArrayOutputStream header =
+            new java.io.ByteArrayOutputStream();
+        writeHeader(header, startFrames, numFrames);
+        long headerLen = header.size();
+
+        // Lay the frames out the way copyFrames wrote them, and pick
+        // the first, middle and last frames to check.
+        FrameIndex frames = getFrameIndex();
+        int totalFrames = getTotalFrames(numFrames);
+        FrameIndex sliceFrames = frames.newIndex(totalFrames);
+        int[] checkFrames = new int[] {
+            0, totalFrames / 2, totalFrames - 1 };
+        long[] checkOffsets = new long[checkFrames.length];
+        long inputLen = mInputFile.length();
+        long dataLen = 0;
+        for (int r = 0; r < startFrames.length; r++) {
+            long copiedStart = -1;
+            long copiedEnd = -1;
+            long copiedDest = 0;
+            for (int i = startFrames[r];
+                 i < startFrames[r] + numFrames[r];
+                 i++) {
+                long offset = frames.getOffset(i);
+                int len = frames.getLen(i);
+                long dest;
+                if (offset < copiedEnd) {
+                    dest = copiedDest + (offset - copiedStart);
+                } else {
+                    dest = headerLen + dataLen;
+                    copiedStart = offset;
+                    copiedEnd = offset + len;
+                    copiedDest = dest;
+                    dataLen += Math.max(
+                        0, Math.min(copiedEnd, inputLen) - offset);
+                }
+                for (int c = 0; c < checkFrames.length; c++) {
+                    if (checkFrames[c] == sliceFrames.size()) {
+                        checkOffsets[c] = offset;
+                    }
+                }
+                sliceFrames.add(dest, len, frames.getGain(i));
+            }
+        }
+
+        CheapSoundFile slice = newSlice(sliceFrames, headerLen, dataLen);
+        if (slice == null) {
+            return create(outputFile.getPath(), null);
+        }
+        slice.mInputFile = outputFile;
+        checkSlice(slice, header.toByteArray(), headerLen + dataLen,
+                   checkFrames, checkOffsets);
+
+        if (!hasAllGains()) {
+            slice.deferGains();
+        } else if (sFrameCache != null) {
+            sFrameCache.write(outputFile, slice);
+        }
+        return slice;
+    }
+
+    /**
+     * Returns a new instance of this class for a file written by
+     * WriteFile, with the given frames after headerLen bytes of header
+     * and dataLen bytes of frame data, for createSlice.  Subclasses
+     * that can't do this return null, and createSlice scans the file.
+     */
+    protected CheapSoundFile newSlice(FrameIndex frames,
+                                      long headerLen, long dataLen) {
+        return null;
+    }
+
+    private void checkSlice(CheapSoundFile slice, byte[] header,
+                            long fileLen, int[] checkFrames,
+                            long[] checkOffsets)
+            throws java.io.IOException {
+        File outputFile = slice.mInputFile;
+        if (outputFile.length() != fileLen) {
+            throw new java.io.IOException(
+                "Wrote " + outputFile.length() + " bytes instead of " +
+                fileLen);
+        }
+
+        RandomAccessFile written = new RandomAccessFile(outputFile, "r");
+        RandomAccessFile input = new RandomAccessFile(mInputFile, "r");
+        try {
+            byte[] writtenHeader = new byte[header.length];
+            written.readFully(writtenHeader);
+            if (!java.util.Arrays.equals(header, writtenHeader)) {
+                throw new java.io.IOException("Wrote a bad header");
+            }
+
+            FrameIndex frames = slice.getFrameIndex();
+            byte[] expected = new byte[4];
+            byte[] actual = new byte[4];
+            for (int c = 0; c < checkFrames.length; c++) {
+                int frame = checkFrames[c];
+                if (frame < 0 || frame >= frames.size()) {
+                    continue;
+                }
+                long offset = frames.getOffset(frame);
+                int len = (int)Math.min(
+                    Math.min(frames.getLen(frame), expected.length),
+                    fileLen - offset);
+                if (len <= 0) {
+                    continue;
+                }
+                input.seek(checkOffsets[c]);
+                input.readFully(expected, 0, len);
+                written.seek(offset);
+                written.readFully(actual, 0, len);
+                for (int i = 0; i < len; i++) {
+                    if (expected[i] != actual[i]) {
+                        throw new java.io.IOException(
+                            "Wrote bad data for frame " + frame);
+                    }
+                }
+            }
+        } finally {
+            written.close();
+            input.close();
+        }
+    }
+
+    /**
+     * Writes the container header that has to come before the given
+     * ranges of frames in a file written by WriteFile.  By default
+     * there's no header.
+     */
+    protected void writeHeader(OutputStream out,
+                               int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
+    }
+
+    /**
+     * Returns the number of frames in all the ranges passed to WriteFile.
+     */
+    protected static int getTotalFrames(int[] numFrames) {
+        int total = 0;
+        for (int i = 0; i < numFrames.length; i++) {
+            total += numFrames[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the total length of the frames in all the ranges passed
+     * to WriteFile.
+     */
+    protected long getTotalLen(int[] startFrames, int[] numFrames) {
+        FrameIndex frames = getFrameIndex();
+        long total = 0;
+        for (int i = 0; i < startFrames.length; i++) {
+            total += frames.getTotalLen(startFrames[i], numFrames[i]);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the byte ranges of the input file that hold the given
+     * ranges of frames, as start and end offsets in the order they're
+     * to be copied.  Frames that follow each other in the input file
+     * are merged into one byte range.  Frames that share their bytes,
+     * like the subframes of an AMR frame, are only visited once, and
+     * within a range of frames, a frame that starts before the end of
+     * the one before it is skipped.
+     */
+    long[] getByteRanges(int[] startFrames, int[] numFrames) {
+        FrameIndex frames = getFrameIndex();
+        long[] ranges = new long[16];
+        int len = 0;
+        for (int r = 0; r < startFrames.length; r++) {
+            long copiedEnd = -1;
+            for (int i = startFrames[r];
+                 i < startFrames[r] + numFrames[r];
+                 i = frames.nextFrameAfter(i)) {
+                long offset = frames.getOffset(i);
+                if (offset < copiedEnd) {
+                    continue;
+                }
+                copiedEnd = offset + frames.getLen(i);
+                if (len > 0 && ranges[len - 1] == offset) {
+                    ranges[len - 1] = copiedEnd;
+                    continue;
+                }
+                if (len == ranges.length) {
+                    long[] newRanges = new long[len * 2];
+                    System.arraycopy(ranges, 0, newRanges, 0, len);
+                    ranges = newRanges;
+                }
+                ranges[len++] = offset;
+                ranges[len++] = copiedEnd;
+            }
+        }
+        long[] result = new long[len];
+        System.arraycopy(ranges, 0, result, 0, len);
+        return result;
+    }
+
+    /**
+     * Copies the given ranges of frames of the input file to out, for
+     * WriteFile.  Each byte range from getByteRanges is moved with
+     * FileChannel.transferTo, so when out is a file the data never
+     * passes through the Java heap.
+     */
+    protected void copyFrames(WritableByteChannel out,
+                              int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
+        long[] ranges = getByteRanges(startFrames, numFrames);
+        FileInputStream in = new FileInputStream(mInputFile);
+        try {
+            FileChannel inChannel = in.getChannel();
+            for (int i = 0; i < ranges.length; i += 2) {
+                transferFully(inChannel, ranges[i], ranges[i + 1] - ranges[i],
+                              out);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies count bytes starting at position of in to out, stopping
+     * early only at the end of in.  If transferTo stops making progress,
+     * which some channels do when they can't take more right away, the
+     * rest is copied through a buffer instead.
+     */
+    private static void transferFully(FileChannel in, long position,
+                                      long count, WritableByteChannel out)
+            throws java.io.IOException {
+        while (count > 0 && position < in.size()) {
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0) {
+                copyThroughBuffer(in, position, count, out);
+                return;
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static void copyThroughBuffer(FileChannel in, long position,
+                                          long count,
+                                          WritableByteChannel out)
+            throws java.io.IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(
+            (int)Math.min(count, EXPORT_BUFFER_SIZE));
+        while (count > 0) {
+            buffer.clear();
+            if (buffer.remaining() > count) {
+                buffer.limit((int)count);
+            }
+            int len = in.read(buffer, position);
+            if (len <= 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            position += len;
+            count -= len;
+        }
     }
 };
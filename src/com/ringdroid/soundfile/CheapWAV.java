@@ -16,10 +16,15 @@
 
 package com.ringdroid.soundfile;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * CheapWAV represents a standard 16-bit WAV file, splitting it into
@@ -27,6 +32,11 @@ import java.io.InputStream;
  * get an approximation of the waveform contour.
  */
 public class CheapWAV extends CheapSoundFile {
+    // The data chunk is mapped into memory this many bytes at a time
+    // (rounded down to a whole number of frames), so that very long
+    // recordings don't need to fit into the address space at once.
+    private static final int MAP_WINDOW_BYTES = 8 * 1024 * 1024;
+
     public static Factory getFactory() {
         return new Factory() {
             public CheapSoundFile create() {
@@ -40,15 +50,16 @@ public class CheapWAV extends CheapSoundFile {
 
     // Member variables containing frame info
     private int mNumFrames;
-    private int[] mFrameOffsets;
-    private int[] mFrameLens;
-    private int[] mFrameGains;
+    private FrameIndex mFrames;
     private int mFrameBytes;
-    private int mFileSize;
+    private long mFileSize;
     private int mSampleRate;
     private int mChannels;
+    // Where the samples are, for scanGains
+    private long mDataOffset;
+    private long mDataLen;
     // Member variables used during initialization
-    private int mOffset;
+    private long mOffset;
 
     public CheapWAV() {
     }
@@ -57,23 +68,27 @@ public class CheapWAV extends CheapSoundFile {
         return mNumFrames;
     }
 
+    public FrameIndex getFrameIndex() {
+        return mFrames;
+    }
+
     public int getSamplesPerFrame() {
         return mSampleRate / 50;
     }
 
-    public int[] getFrameOffsets() {
-        return mFrameOffsets;
+    public long[] getFrameOffsets() {
+        return mFrames.getOffsets();
     }
 
     public int[] getFrameLens() {
-        return mFrameLens;
+        return mFrames.getLens();
     }
 
     public int[] getFrameGains() {
-        return mFrameGains;
+        return mFrames.getGains();
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return mFileSize;        
     }
 
@@ -96,8 +111,25 @@ public class CheapWAV extends CheapSoundFile {
     public void ReadFile(File inputFile)
             throws java.io.FileNotFoundException,
                    java.io.IOException {
+        readFile(inputFile, true);
+    }
+
+    /**
+     * Every frame but the last is the same length, so the frames can be
+     * laid out from the headers alone.
+     */
+    public void ReadFrameIndex(File inputFile)
+            throws java.io.FileNotFoundException,
+                   java.io.IOException {
+        readFile(inputFile, false);
+        deferGains();
+    }
+
+    private void readFile(File inputFile, boolean computeGains)
+            throws java.io.FileNotFoundException,
+                   java.io.IOException {
         super.ReadFile(inputFile);
-        mFileSize = (int)mInputFile.length();
+        mFileSize = mInputFile.length();
 
         if (mFileSize < 128) {
             throw new java.io.IOException("File too small to parse");
@@ -120,13 +152,16 @@ public class CheapWAV extends CheapSoundFile {
 
         mChannels = 0;
         mSampleRate = 0;
+        mNumFrames = 0;
+        mFrames = new FrameIndex();
+        byte[] chunkHeader = new byte[8];
         while (mOffset + 8 <= mFileSize) {
-            byte[] chunkHeader = new byte[8];
             stream.read(chunkHeader, 0, 8);
             mOffset += 8;
 
-            int chunkLen =
-                ((0xff & chunkHeader[7]) << 24) |
+            // Chunk lengths are unsigned 32-bit values
+            long chunkLen =
+                ((0xffL & chunkHeader[7]) << 24) |
                 ((0xff & chunkHeader[6]) << 16) |
                 ((0xff & chunkHeader[5]) << 8) |
                 ((0xff & chunkHeader[4]));
@@ -140,8 +175,8 @@ public class CheapWAV extends CheapSoundFile {
                         "WAV file has bad fmt chunk");
                 }
 
-                byte[] fmt = new byte[chunkLen];
-                stream.read(fmt, 0, chunkLen);
+                byte[] fmt = new byte[(int)chunkLen];
+                stream.read(fmt, 0, (int)chunkLen);
                 mOffset += chunkLen;
 
                 int format =
@@ -170,70 +205,260 @@ public class CheapWAV extends CheapSoundFile {
                         "Bad WAV file: data chunk before fmt chunk");
                 }
 
+                // Don't trust a data chunk that claims to run past
+                // the end of the file.
+                if (chunkLen > mFileSize - mOffset) {
+                    chunkLen = mFileSize - mOffset;
+                }
+
                 int frameSamples = (mSampleRate * mChannels) / 50;
                 mFrameBytes = frameSamples * 2;
 
-                mNumFrames = (chunkLen + (mFrameBytes - 1)) / mFrameBytes;
-                mFrameOffsets = new int[mNumFrames];
-                mFrameLens = new int[mNumFrames];
-                mFrameGains = new int[mNumFrames];
+                // Every frame but the last is the same length, so lay
+                // them all out now; the scan only fills in the gains.
+                mNumFrames = (int)((chunkLen + (mFrameBytes - 1)) /
+                                   mFrameBytes);
+                mFrames = new FrameIndex(mNumFrames, false);
+                for (int i = 0; i < mNumFrames; i++) {
+                    long frameOffset = (long)i * mFrameBytes;
+                    int frameLen = mFrameBytes;
+                    if (i == mNumFrames - 1) {
+                        frameLen = (int)(chunkLen - frameOffset);
+                    }
+                    mFrames.add(mOffset + frameOffset, frameLen, 0);
+                }
+                mDataOffset = mOffset;
+                mDataLen = chunkLen;
+
+                if (computeGains) {
+                    boolean keepGoing = scanDataChunk(
+                        stream.getChannel(), mOffset, chunkLen);
+                    if (!keepGoing) {
+                        break;
+                    }
+                    reportFrames(mNumFrames, true);
+                }
 
-                byte[] oneFrame = new byte[mFrameBytes];
+                stream.skip(chunkLen);
+                mOffset += chunkLen;
 
-                int i = 0;
-                int frameIndex = 0;
-                while (i < chunkLen) {
-                    int oneFrameBytes = mFrameBytes;
-                    if (i + oneFrameBytes > chunkLen) {
-                        i = chunkLen - oneFrameBytes;
-                    }
+            } else {
+                stream.skip(chunkLen);
+                mOffset += chunkLen;
+            }
+        }
 
-                    stream.read(oneFrame, 0, oneFrameBytes);
+        stream.close();
+    }
 
-                    int maxGain = 0;
-                    for (int j = 1; j < oneFrameBytes; j += 4 * mChannels) {
-                        int val = java.lang.Math.abs(oneFrame[j]);
-                        if (val > maxGain) {
-                            maxGain = val;
-                        }
-                    }
+    void writeCache(DataOutputStream out)
+            throws java.io.IOException {
+        out.writeLong(mFileSize);
+        out.writeInt(mSampleRate);
+        out.writeInt(mChannels);
+        out.writeInt(mFrameBytes);
+        out.writeInt(mNumFrames);
+        mFrames.write(out);
+    }
 
-                    mFrameOffsets[frameIndex] = mOffset;
-                    mFrameLens[frameIndex] = oneFrameBytes;
-                    mFrameGains[frameIndex] = maxGain;
+    void readCache(DataInputStream in)
+            throws java.io.IOException {
+        mFileSize = in.readLong();
+        mSampleRate = in.readInt();
+        mChannels = in.readInt();
+        mFrameBytes = in.readInt();
+        mNumFrames = in.readInt();
+        mFrames = FrameIndex.read(in);
+    }
 
-                    frameIndex++;
-                    mOffset += oneFrameBytes;
-                    i += oneFrameBytes;
+    /**
+     * Fills in the gain of every frame in the data chunk.  Rather than
+     * reading the chunk one frame at a time, it's mapped into memory a
+     * window at a time and the samples are read straight out of a
+     * ShortBuffer view.  Each frame only depends on its own samples, so
+     * long files are split into windows that are scanned in parallel.
+     * Returns false if the progress listener asked us to stop.
+     */
+    private boolean scanDataChunk(final FileChannel channel,
+                                  final long dataOffset,
+                                  final long dataLen)
+            throws java.io.IOException {
+        int framesPerWindow = MAP_WINDOW_BYTES / mFrameBytes;
+        if (framesPerWindow < 1) {
+            framesPerWindow = 1;
+        }
 
-                    if (mProgressListener != null) {
-                        boolean keepGoing = mProgressListener.reportProgress(
-                            i * 1.0 / chunkLen);
-                        if (!keepGoing) {
-                            break;
-                        }
+        if (ParallelScan.isWorthwhile(mNumFrames)) {
+            return ParallelScan.scan(
+                this,
+                mNumFrames,
+                framesPerWindow,
+                new ParallelScan.RangeScanner() {
+                    public void scanRange(int startFrame, int endFrame)
+                            throws java.io.IOException {
+                        scanFrames(channel, dataOffset, dataLen,
+                                   startFrame, endFrame, false);
                     }
+                });
+        }
+
+        for (int startFrame = 0;
+             startFrame < mNumFrames;
+             startFrame += framesPerWindow) {
+            int endFrame = startFrame + framesPerWindow;
+            if (endFrame > mNumFrames) {
+                endFrame = mNumFrames;
+            }
+            boolean keepGoing = scanFrames(channel, dataOffset, dataLen,
+                                           startFrame, endFrame, true);
+            if (!keepGoing) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void scanGains(int startFrame, int endFrame)
+            throws java.io.IOException {
+        FileInputStream stream = new FileInputStream(mInputFile);
+        try {
+            scanFrames(stream.getChannel(), mDataOffset, mDataLen,
+                       startFrame, endFrame, false);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Maps frames [startFrame, endFrame) of the data chunk and computes
+     * their gains.  If reportProgress is true, the progress and frame
+     * listeners are called after every frame, and false is returned if
+     * the progress listener asks us to stop.
+     */
+    private boolean scanFrames(FileChannel channel,
+                               long dataOffset,
+                               long dataLen,
+                               int startFrame,
+                               int endFrame,
+                               boolean reportProgress)
+            throws java.io.IOException {
+        long windowStart = (long)startFrame * mFrameBytes;
+        int windowLen = (endFrame - startFrame) * mFrameBytes;
+        if (windowStart + windowLen > dataLen) {
+            windowLen = (int)(dataLen - windowStart);
+        }
+        ShortBuffer samples = channel.map(
+            FileChannel.MapMode.READ_ONLY,
+            dataOffset + windowStart,
+            windowLen).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+
+        int frameIndex = startFrame;
+        for (int i = 0; i < windowLen; i += mFrameBytes) {
+            int oneFrameBytes = mFrameBytes;
+            if (i + oneFrameBytes > windowLen) {
+                oneFrameBytes = windowLen - i;
+            }
+
+            // Look at the high byte of the first channel of every
+            // other sample, just like reading the raw bytes would.
+            int maxGain = 0;
+            int end = (i + oneFrameBytes) / 2;
+            for (int j = i / 2; j < end; j += 2 * mChannels) {
+                int val = java.lang.Math.abs(samples.get(j) >> 8);
+                if (val > maxGain) {
+                    maxGain = val;
                 }
+            }
 
-            } else {
-                stream.skip(chunkLen);
-                mOffset += chunkLen;
+            mFrames.setGain(frameIndex, maxGain);
+            frameIndex++;
+
+            if (reportProgress) {
+                reportFrames(frameIndex, false);
+            }
+            if (reportProgress && mProgressListener != null) {
+                boolean keepGoing = mProgressListener.reportProgress(
+                    (windowStart + i + oneFrameBytes) * 1.0 / dataLen);
+                if (!keepGoing) {
+                    return false;
+                }
             }
         }
+
+        return true;
     }
 
-    public void WriteFile(File outputFile, int startFrame, int numFrames)
+    /**
+     * The samples are already PCM, so they're read straight out of a
+     * mapped view of the data chunk, a window at a time.
+     */
+    public int readPcm(int startFrame, int numFrames, ShortBuffer out)
             throws java.io.IOException {
-        outputFile.createNewFile();
-        FileInputStream in = new FileInputStream(mInputFile);
-        FileOutputStream out = new FileOutputStream(outputFile);
+        if (startFrame < 0) {
+            numFrames += startFrame;
+            startFrame = 0;
+        }
+        if (numFrames > mNumFrames - startFrame) {
+            numFrames = mNumFrames - startFrame;
+        }
+        if (numFrames <= 0) {
+            return 0;
+        }
 
-        long totalAudioLen = 0;
-        for (int i = 0; i < numFrames; i++) {
-            totalAudioLen += mFrameLens[startFrame + i];
+        // Whole sample frames only, and no more than out has room for
+        int sampleFrameBytes = 2 * mChannels;
+        long position = mFrames.getOffset(startFrame);
+        long len = mFrames.getTotalLen(startFrame, numFrames);
+        if (len > 2L * out.remaining()) {
+            len = 2L * out.remaining();
         }
+        len -= len % sampleFrameBytes;
+
+        int windowBytes =
+            MAP_WINDOW_BYTES - MAP_WINDOW_BYTES % sampleFrameBytes;
+        FileInputStream stream = new FileInputStream(mInputFile);
+        try {
+            FileChannel channel = stream.getChannel();
+            for (long done = 0; done < len; done += windowBytes) {
+                int windowLen = (int)Math.min(windowBytes, len - done);
+                out.put(channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    position + done,
+                    windowLen).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+            }
+        } finally {
+            stream.close();
+        }
+        return (int)(len / 2);
+    }
+
+    protected CheapSoundFile newSlice(FrameIndex frames,
+                                      long headerLen, long dataLen) {
+        CheapWAV slice = new CheapWAV();
+        slice.mFrames = frames;
+        slice.mNumFrames = frames.size();
+        slice.mFileSize = headerLen + dataLen;
+        slice.mSampleRate = mSampleRate;
+        slice.mChannels = mChannels;
+        slice.mFrameBytes = mFrameBytes;
+        slice.mDataOffset = headerLen;
+        slice.mDataLen = dataLen;
+        return slice;
+    }
+
+    protected void writeHeader(OutputStream out,
+                               int[] startFrames, int[] numFrames)
+            throws java.io.IOException {
+        long totalAudioLen = getTotalLen(startFrames, numFrames);
 
+        // The RIFF sizes are only 32 bits; rather than write a header
+        // that wraps around, refuse to write the file at all.
         long totalDataLen = totalAudioLen + 36;
+        if (totalDataLen > 0xffffffffL) {
+            throw new java.io.IOException(
+                "Too much audio for a WAV file: " + totalAudioLen +
+                " bytes");
+        }
         long longSampleRate = mSampleRate;
         long byteRate = mSampleRate * 2 * mChannels;
 
@@ -283,25 +508,5 @@ public class CheapWAV extends CheapSoundFile {
         header[42] = (byte) ((totalAudioLen >> 16) & 0xff);
         header[43] = (byte) ((totalAudioLen >> 24) & 0xff);
         out.write(header, 0, 44);
-
-        byte[] buffer = new byte[mFrameBytes];
-        int pos = 0;
-        for (int i = 0; i < numFrames; i++) {
-            int skip = mFrameOffsets[startFrame + i] - pos;
-            int len = mFrameLens[startFrame + i];
-            if (skip < 0) {
-                continue;
-            }
-            if (skip > 0) {
-                in.skip(skip);
-                pos += skip;
-            }
-            in.read(buffer, 0, len);
-            out.write(buffer, 0, len);
-            pos += len;
-        }
-
-        in.close();
-        out.close();
     }
 };
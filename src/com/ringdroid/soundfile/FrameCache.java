@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * FrameCache saves the results of scanning a sound file to a directory,
+ * so that the next time the same file is opened its CheapSoundFile can
+ * be rebuilt without scanning it again.
+ *
+ * There's one cache file per sound file and CheapSoundFile subclass.
+ * A cache file is only used if the sound file still has the same
+ * length, modification time and first HEADER_HASH_BYTES bytes.  Cache
+ * files are touched when they're used, and the least recently used
+ * ones are deleted when the directory grows past its size limit.
+ */
+class FrameCache {
+    private static final int MAGIC = 0x52444643;  // "RDFC"
+    private static final int VERSION = 3;
+    private static final int HEADER_HASH_BYTES = 4096;
+    private static final String SUFFIX = ".frames";
+
+    private File mDir;
+    private long mMaxBytes;
+
+    FrameCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * If there's an up to date cache file for inputFile as scanned by
+     * soundFile's class, fills in soundFile from it and returns true.
+     * Returns false if there isn't, or if it can't be read.
+     */
+    boolean read(File inputFile, CheapSoundFile soundFile) {
+        File cacheFile = null;
+        DataInputStream in = null;
+        try {
+            cacheFile = getCacheFile(inputFile, soundFile);
+            if (!cacheFile.exists()) {
+                return false;
+            }
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(cacheFile)));
+            if (in.readInt() != MAGIC ||
+                in.readInt() != VERSION ||
+                !in.readUTF().equals(inputFile.getAbsolutePath()) ||
+                !in.readUTF().equals(soundFile.getCacheVariant()) ||
+                in.readLong() != inputFile.length() ||
+                in.readLong() != inputFile.lastModified() ||
+                !in.readUTF().equals(hashHeader(inputFile))) {
+                in.close();
+                cacheFile.delete();
+                return false;
+            }
+            soundFile.mInputFile = inputFile;
+            soundFile.readCache(in);
+            in.close();
+            cacheFile.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (Exception e) {
+            // A cache file we can't use is no worse than no cache file
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (java.io.IOException e2) {
+                }
+            }
+            if (cacheFile != null) {
+                cacheFile.delete();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Saves soundFile, which has just finished scanning inputFile, and
+     * trims the cache back down to its size limit.
+     */
+    void write(File inputFile, CheapSoundFile soundFile) {
+        File cacheFile = null;
+        File tempFile = null;
+        try {
+            mDir.mkdirs();
+            cacheFile = getCacheFile(inputFile, soundFile);
+            tempFile = new File(mDir, cacheFile.getName() + ".tmp");
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(inputFile.getAbsolutePath());
+                out.writeUTF(soundFile.getCacheVariant());
+                out.writeLong(inputFile.length());
+                out.writeLong(inputFile.lastModified());
+                out.writeUTF(hashHeader(inputFile));
+                soundFile.writeCache(out);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(cacheFile)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Deletes the least recently used cache files until the ones that
+     * are left fit in mMaxBytes.
+     */
+    void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File f : files) {
+            totalBytes += f.length();
+        }
+        java.util.Arrays.sort(files, new java.util.Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && totalBytes > mMaxBytes; i++) {
+            long len = files[i].length();
+            if (files[i].delete()) {
+                totalBytes -= len;
+            }
+        }
+    }
+
+    private File getCacheFile(File inputFile, CheapSoundFile soundFile)
+            throws java.security.NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        String key = inputFile.getAbsolutePath() + "\n" +
+            soundFile.getCacheVariant();
+        try {
+            digest.update(key.getBytes("UTF-8"));
+        } catch (java.io.UnsupportedEncodingException e) {
+            digest.update(key.getBytes());
+        }
+        return new File(
+            mDir, CheapSoundFile.bytesToHex(digest.digest()) + SUFFIX);
+    }
+
+    private static String hashHeader(File inputFile)
+            throws java.io.IOException,
+                   java.security.NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        FileInputStream in = new FileInputStream(inputFile);
+        try {
+            byte[] buffer = new byte[HEADER_HASH_BYTES];
+            int len = 0;
+            while (len < buffer.length) {
+                int count = in.read(buffer, len, buffer.length - len);
+                if (count <= 0) {
+                    break;
+                }
+                len += count;
+            }
+            digest.update(buffer, 0, len);
+        } finally {
+            in.close();
+        }
+        return CheapSoundFile.bytesToHex(digest.digest());
+    }
+};
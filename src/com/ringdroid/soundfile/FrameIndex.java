@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameIndex holds the byte offset, length and gain of every frame of
+ * a CheapSoundFile in a compact form, with constant time access to any
+ * frame and amortized constant time appends.
+ *
+ * Offsets are stored as one full 64-bit offset per block of BLOCK_SIZE
+ * frames plus a 16-bit delta from it for every frame, lengths as 16-bit
+ * values and gains as 8-bit values, for about 6 bytes per frame instead
+ * of the 12 bytes of three int arrays.  If a file ever has a block or a
+ * frame too large for 16 bits, that array switches to plain longs or
+ * ints.
+ * Gains are clamped to 0 - 255, or to 0 - 65535 for an index created
+ * with wide gains.
+ */
+public class FrameIndex {
+    private static final int BLOCK_SHIFT = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private int mNumFrames;
+    private int mCapacity;
+
+    // Offsets: either mBlockOffsets + mOffsetDeltas, or mWideOffsets
+    private long[] mBlockOffsets;
+    private char[] mOffsetDeltas;
+    private long[] mWideOffsets;
+
+    // Lengths: either mLens or mWideLens
+    private char[] mLens;
+    private int[] mWideLens;
+
+    // Gains: either mGains or mWideGains, fixed at construction
+    private byte[] mGains;
+    private char[] mWideGains;
+
+    public FrameIndex() {
+        this(64, false);
+    }
+
+    /**
+     * Creates an index with room for capacity frames before it needs
+     * to grow.  If wideGains is true, gains up to 65535 are kept.
+     */
+    public FrameIndex(int capacity, boolean wideGains) {
+        if (capacity < BLOCK_SIZE) {
+            capacity = BLOCK_SIZE;
+        }
+        mNumFrames = 0;
+        mCapacity = capacity;
+        mBlockOffsets = new long[numBlocks(capacity)];
+        mOffsetDeltas = new char[capacity];
+        mLens = new char[capacity];
+        if (wideGains) {
+            mWideGains = new char[capacity];
+        } else {
+            mGains = new byte[capacity];
+        }
+    }
+
+    public int size() {
+        return mNumFrames;
+    }
+
+    boolean hasWideGains() {
+        return mWideGains != null;
+    }
+
+    /**
+     * Returns a new, empty index of the same kind as this one, with
+     * room for capacity frames.
+     */
+    FrameIndex newIndex(int capacity) {
+        return new FrameIndex(capacity, hasWideGains());
+    }
+
+    /**
+     * Appends a frame.  Offsets should be nondecreasing, as they are
+     * when a file is scanned from start to end.
+     */
+    public void add(long offset, int len, int gain) {
+        if (mNumFrames == mCapacity) {
+            grow(mCapacity * 2);
+        }
+        int frame = mNumFrames;
+
+        if (mWideOffsets != null) {
+            mWideOffsets[frame] = offset;
+        } else {
+            int block = frame >> BLOCK_SHIFT;
+            if ((frame & (BLOCK_SIZE - 1)) == 0) {
+                mBlockOffsets[block] = offset;
+            }
+            long delta = offset - mBlockOffsets[block];
+            if (delta >= 0 && delta <= 0xffff) {
+                mOffsetDeltas[frame] = (char)delta;
+            } else {
+                widenOffsets();
+                mWideOffsets[frame] = offset;
+            }
+        }
+
+        if (mWideLens == null && (len < 0 || len > 0xffff)) {
+            widenLens();
+        }
+        if (mWideLens != null) {
+            mWideLens[frame] = len;
+        } else {
+            mLens[frame] = (char)len;
+        }
+
+        mNumFrames++;
+        setGain(frame, gain);
+    }
+
+    public long getOffset(int frame) {
+        if (mWideOffsets != null) {
+            return mWideOffsets[frame];
+        }
+        return mBlockOffsets[frame >> BLOCK_SHIFT] + mOffsetDeltas[frame];
+    }
+
+    public int getLen(int frame) {
+        if (mWideLens != null) {
+            return mWideLens[frame];
+        }
+        return mLens[frame];
+    }
+
+    public int getGain(int frame) {
+        if (mWideGains != null) {
+            return mWideGains[frame];
+        }
+        return 0xff & mGains[frame];
+    }
+
+    /**
+     * Changes the gain of a frame that's already been added.  Different
+     * threads may set the gains of different frames at the same time.
+     */
+    public void setGain(int frame, int gain) {
+        if (gain < 0) {
+            gain = 0;
+        }
+        if (mWideGains != null) {
+            mWideGains[frame] = (char)(gain > 0xffff ? 0xffff : gain);
+        } else {
+            mGains[frame] = (byte)(gain > 0xff ? 0xff : gain);
+        }
+    }
+
+    // Everything from here to trimToSize only goes through size() and
+    // the per-frame getters, so subclasses that keep their frames some
+    // other way get correct results without overriding them.
+
+    public int getMinGain() {
+        int numFrames = size();
+        int minGain = Integer.MAX_VALUE;
+        for (int i = 0; i < numFrames; i++) {
+            minGain = Math.min(minGain, getGain(i));
+        }
+        return numFrames > 0 ? minGain : 0;
+    }
+
+    public int getMaxGain() {
+        int numFrames = size();
+        int maxGain = 0;
+        for (int i = 0; i < numFrames; i++) {
+            maxGain = Math.max(maxGain, getGain(i));
+        }
+        return maxGain;
+    }
+
+    /**
+     * Returns the first frame after frame that doesn't share its bytes,
+     * which is frame + 1 unless this is a SubframeIndex.
+     */
+    public int nextFrameAfter(int frame) {
+        return frame + 1;
+    }
+
+    /**
+     * Returns the total length of the given range of frames.
+     */
+    public long getTotalLen(int startFrame, int numFrames) {
+        long total = 0;
+        for (int i = startFrame; i < startFrame + numFrames; i++) {
+            total += getLen(i);
+        }
+        return total;
+    }
+
+    // The following return new arrays with one entry per frame, for
+    // callers that want the old CheapSoundFile arrays.
+
+    public long[] getOffsets() {
+        int numFrames = size();
+        long[] offsets = new long[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            offsets[i] = getOffset(i);
+        }
+        return offsets;
+    }
+
+    public int[] getLens() {
+        int numFrames = size();
+        int[] lens = new int[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            lens[i] = getLen(i);
+        }
+        return lens;
+    }
+
+    public int[] getGains() {
+        int numFrames = size();
+        int[] gains = new int[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            gains[i] = getGain(i);
+        }
+        return gains;
+    }
+
+    /**
+     * Releases any room reserved for frames that were never added.
+     */
+    public void trimToSize() {
+        if (mCapacity > mNumFrames && mNumFrames >= BLOCK_SIZE) {
+            grow(mNumFrames);
+        }
+    }
+
+    /**
+     * Writes the index in its compact form, for FrameCache.
+     */
+    void write(DataOutputStream out)
+            throws java.io.IOException {
+        int n = mNumFrames;
+        out.writeInt(n);
+        out.writeBoolean(mWideOffsets != null);
+        out.writeBoolean(mWideLens != null);
+        out.writeBoolean(mWideGains != null);
+        if (mWideOffsets != null) {
+            writeLongs(out, mWideOffsets, n);
+        } else {
+            writeLongs(out, mBlockOffsets, numBlocks(n));
+            writeChars(out, mOffsetDeltas, n);
+        }
+        if (mWideLens != null) {
+            writeInts(out, mWideLens, n);
+        } else {
+            writeChars(out, mLens, n);
+        }
+        if (mWideGains != null) {
+            writeChars(out, mWideGains, n);
+        } else {
+            out.write(mGains, 0, n);
+        }
+    }
+
+    /**
+     * Reads an index written by write().
+     */
+    static FrameIndex read(DataInputStream in)
+            throws java.io.IOException {
+        int n = in.readInt();
+        boolean wideOffsets = in.readBoolean();
+        boolean wideLens = in.readBoolean();
+        boolean wideGains = in.readBoolean();
+        // Every frame takes at least a byte, so a bad count can't make
+        // us allocate much more than the size of the file.
+        if (n < 0 || n > in.available()) {
+            throw new java.io.IOException("Bad frame count");
+        }
+
+        FrameIndex index = new FrameIndex(n, wideGains);
+        index.mNumFrames = n;
+        if (wideOffsets) {
+            index.mBlockOffsets = null;
+            index.mOffsetDeltas = null;
+            index.mWideOffsets = new long[index.mCapacity];
+            readLongs(in, index.mWideOffsets, n);
+        } else {
+            readLongs(in, index.mBlockOffsets, numBlocks(n));
+            readChars(in, index.mOffsetDeltas, n);
+        }
+        if (wideLens) {
+            index.mLens = null;
+            index.mWideLens = new int[index.mCapacity];
+            readInts(in, index.mWideLens, n);
+        } else {
+            readChars(in, index.mLens, n);
+        }
+        if (wideGains) {
+            readChars(in, index.mWideGains, n);
+        } else {
+            in.readFully(index.mGains, 0, n);
+        }
+        return index;
+    }
+
+    private static void writeLongs(DataOutputStream out,
+                                   long[] array, int length)
+            throws java.io.IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * length);
+        buffer.asLongBuffer().put(array, 0, length);
+        out.write(buffer.array());
+    }
+
+    private static void writeInts(DataOutputStream out,
+                                  int[] array, int length)
+            throws java.io.IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * length);
+        buffer.asIntBuffer().put(array, 0, length);
+        out.write(buffer.array());
+    }
+
+    static void writeChars(DataOutputStream out,
+                           char[] array, int length)
+            throws java.io.IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * length);
+        buffer.asCharBuffer().put(array, 0, length);
+        out.write(buffer.array());
+    }
+
+    private static void readLongs(DataInputStream in,
+                                  long[] array, int length)
+            throws java.io.IOException {
+        byte[] bytes = new byte[8 * length];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asLongBuffer().get(array, 0, length);
+    }
+
+    private static void readInts(DataInputStream in,
+                                 int[] array, int length)
+            throws java.io.IOException {
+        byte[] bytes = new byte[4 * length];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asIntBuffer().get(array, 0, length);
+    }
+
+    static void readChars(DataInputStream in,
+                          char[] array, int length)
+            throws java.io.IOException {
+        byte[] bytes = new byte[2 * length];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asCharBuffer().get(array, 0, length);
+    }
+
+    private void grow(int newCapacity) {
+        if (mWideOffsets != null) {
+            mWideOffsets = copyOf(mWideOffsets, newCapacity);
+        } else {
+            mBlockOffsets = copyOf(mBlockOffsets, numBlocks(newCapacity));
+            mOffsetDeltas = copyOf(mOffsetDeltas, newCapacity);
+        }
+        if (mWideLens != null) {
+            mWideLens = copyOf(mWideLens, newCapacity);
+        } else {
+            mLens = copyOf(mLens, newCapacity);
+        }
+        if (mWideGains != null) {
+            mWideGains = copyOf(mWideGains, newCapacity);
+        } else {
+            byte[] gains = new byte[newCapacity];
+            System.arraycopy(mGains, 0, gains, 0, mNumFrames);
+            mGains = gains;
+        }
+        mCapacity = newCapacity;
+    }
+
+    private void widenOffsets() {
+        mWideOffsets = new long[mCapacity];
+        for (int i = 0; i < mNumFrames; i++) {
+            mWideOffsets[i] = getOffset(i);
+        }
+        mBlockOffsets = null;
+        mOffsetDeltas = null;
+    }
+
+    private void widenLens() {
+        mWideLens = new int[mCapacity];
+        for (int i = 0; i < mNumFrames; i++) {
+            mWideLens[i] = mLens[i];
+        }
+        mLens = null;
+    }
+
+    private static int numBlocks(int numFrames) {
+        return (numFrames + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static char[] copyOf(char[] array, int length) {
+        char[] copy = new char[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+};
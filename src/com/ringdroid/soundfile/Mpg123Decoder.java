@@ -4,6 +4,9 @@
  */
 package com.ringdroid.soundfile;
 
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
 public class Mpg123Decoder {
     static {
         System.loadLibrary("mpg123_jni");
@@ -12,53 +15,469 @@ public class Mpg123Decoder {
 
     private static native int init();
     private static native String getErrorMessage(int error);
-    private static native long openFile(String filename);
+    private static native long openFile(String filename, int downSample);
+    private static native boolean reopenFile(long handle, String filename);
+    private static native void closeFile(long handle);
     private static native void delete(long handle);
     private static native int readSamples(long handle, short[] buffer, int offset, int numSamples);
+    private static native int readSamplesDirect(long handle, ShortBuffer buffer, int offset, int numSamples);
     private static native int skipSamples(long handle, int numSamples);
     private static native int seek(long handle, float offsetInSeconds);
+    private static native long seekToFrame(long handle, int frame);
+    private static native int setIndex(long handle, long[] offsets, int step);
     private static native float getPosition(long handle);
     private static native long getPositionInFrames(long handle);
     private static native int getNumChannels(long handle);
+    private static native int getOutputChannels(long handle);
     private static native int getRate(long handle);
     private static native int getBitRate(long handle);
     private static native int getSampleRate(long handle);
     private static native long getNumFrames(long handle);
     private static native int getFrameLen(long handle);
+    private static native void getCounters(long handle, long[] counters);
     private static native float getDuration(long handle);
     private static native int getFramesPerSecond(long handle);
     private static native int getSamplesPerFrame(long handle);
     private static native int readNextFrame(long handle);
     private static native int decodeFrame(long handle);
     private static native int readSamplesAll(long handle);
+    private static native int scanAll(long handle, long[] offsets, int[] lens, int[] gains,
+                                      short[] levels, int levelsPerFrame,
+                                      int start, long fileSize,
+                                      CheapSoundFile.ProgressListener listener, int interval);
+
+    /**
+     * Decode modes for the constructor.  DECODE_FULL decodes every
+     * channel at the file's own rate.  The others are for analysis
+     * only: they mix down to mono and synthesize at half or a quarter
+     * of the rate, which is several times faster, and are close enough
+     * for estimating volume.  The frame info (sample rate, channels,
+     * samples per frame, frame lengths) still describes the file.
+     */
+    public static final int DECODE_FULL = 0;
+    public static final int DECODE_HALF_RATE = 1;
+    public static final int DECODE_QUARTER_RATE = 2;
+
+    /**
+     * Indices into getCounters(): the frames decoded, the bytes of
+     * frames read, and how many frames failed to decode, all since the
+     * file was opened.
+     */
+    public static final int COUNTER_FRAMES = 0;
+    public static final int COUNTER_BYTES = 1;
+    public static final int COUNTER_DECODE_ERRORS = 2;
+    public static final int NUM_COUNTERS = 3;
+
+    // Handles given back by release(), with their files closed, and the
+    // decode mode each one was opened with.  Guarded by sPoolLock.
+    private static final int MAX_POOLED_HANDLES = 4;
+    private static final long[] sPooledHandles = new long[MAX_POOLED_HANDLES];
+    private static final int[] sPooledModes = new int[MAX_POOLED_HANDLES];
+    private static int sNumPooled = 0;
+    private static final Object sPoolLock = new Object();
+
+    // _handle is 0 once the decoder has been closed or released.  Each
+    // native call holds a use for its duration, and a close or release
+    // asked for while there are uses is done by the last of them, so the
+    // handle is never freed or pooled under a call.  Guarded by this.
+    private long _handle = 0;
+    private int _uses = 0;
+    private int _pendingEnd = END_NONE;
+    private final int _decodeMode;
+
+    private static final int END_NONE = 0;
+    private static final int END_CLOSE = 1;
+    private static final int END_RELEASE = 2;
 
-    long _handle = 0;
     public Mpg123Decoder(String filename) {
-        _handle = openFile(filename);
-        if (_handle == -1)
+        this(filename, DECODE_FULL);
+    }
+
+    public Mpg123Decoder(String filename, int decodeMode) {
+        _decodeMode = decodeMode;
+        _handle = openFile(filename, decodeMode);
+        if (_handle == 0)
+            throw new IllegalArgumentException( "Couldn't open file '" + filename + "'" );
+    }
+
+    private Mpg123Decoder(long handle, int decodeMode) {
+        _decodeMode = decodeMode;
+        _handle = handle;
+    }
+
+    /**
+     * Returns libmpg123's description of an error code returned by one
+     * of the methods here.
+     */
+    public static String getErrorString(int error) {
+        return getErrorMessage(error);
+    }
+
+    /**
+     * Like new Mpg123Decoder(filename, decodeMode), but reopens a handle
+     * given back by release() if there's one with the same decode mode,
+     * which saves setting up a new decoder and its buffers.  Safe to
+     * call from any thread.  The caller owns the decoder and must give
+     * it back with release() or close() when it's done.  Only the owner
+     * should make calls on it, one at a time, but release() and close()
+     * are safe from any thread: they never free the handle while a call
+     * is running.
+     */
+    public static Mpg123Decoder obtain(String filename, int decodeMode) {
+        long handle = 0;
+        synchronized (sPoolLock) {
+            for (int i = sNumPooled - 1; i >= 0; i--) {
+                if (sPooledModes[i] == decodeMode) {
+                    handle = sPooledHandles[i];
+                    sNumPooled--;
+                    sPooledHandles[i] = sPooledHandles[sNumPooled];
+                    sPooledModes[i] = sPooledModes[sNumPooled];
+                    break;
+                }
+            }
+        }
+        if (handle == 0)
+            return new Mpg123Decoder(filename, decodeMode);
+        if (!reopenFile(handle, filename)) {
+            // The handle is fine, it's the file that isn't
+            pool(handle, decodeMode);
             throw new IllegalArgumentException( "Couldn't open file '" + filename + "'" );
+        }
+        return new Mpg123Decoder(handle, decodeMode);
     }
 
+    /**
+     * Deletes every pooled handle, e.g. when memory is low.
+     */
+    public static void clearPool() {
+        long[] handles;
+        synchronized (sPoolLock) {
+            handles = new long[sNumPooled];
+            System.arraycopy(sPooledHandles, 0, handles, 0, sNumPooled);
+            sNumPooled = 0;
+        }
+        for (long handle : handles)
+            delete(handle);
+    }
+
+    /**
+     * Closes the file and gives the handle to the pool for obtain() to
+     * reuse, or deletes it if the pool is full.  The decoder can't be
+     * used after this; calling release() or close() again does nothing.
+     * If another call is still running on the decoder, e.g. from a
+     * progress listener during scanAll, that call finishes first and the
+     * handle is released when it returns.
+     */
+    public void release() {
+        end(END_RELEASE);
+    }
+
+    /**
+     * Deletes the handle, with the same guarantees as release().
+     */
     public void close() {
-        if (_handle != 0)
-            delete(_handle);
+        end(END_CLOSE);
+    }
+
+    private void end(int how) {
+        long handle;
+        synchronized (this) {
+            if (_handle == 0 || _pendingEnd != END_NONE)
+                return;
+            _pendingEnd = how;
+            if (_uses > 0)
+                return;
+            handle = _handle;
+            _handle = 0;
+        }
+        finish(handle, how);
+    }
+
+    private void finish(long handle, int how) {
+        if (how == END_RELEASE) {
+            closeFile(handle);
+            if (pool(handle, _decodeMode))
+                return;
+        }
+        delete(handle);
+    }
+
+    /**
+     * Takes a use of the handle for a native call, which must be given
+     * back with done().
+     */
+    private synchronized long acquire() {
+        if (_handle == 0 || _pendingEnd != END_NONE)
+            throw new IllegalStateException( "Decoder has been closed" );
+        _uses++;
+        return _handle;
+    }
+
+    private void done() {
+        long handle;
+        int how;
+        synchronized (this) {
+            _uses--;
+            if (_uses > 0 || _pendingEnd == END_NONE || _handle == 0)
+                return;
+            handle = _handle;
+            how = _pendingEnd;
+            _handle = 0;
+        }
+        finish(handle, how);
+    }
+
+    private static boolean pool(long handle, int decodeMode) {
+        synchronized (sPoolLock) {
+            if (sNumPooled == MAX_POOLED_HANDLES)
+                return false;
+            sPooledHandles[sNumPooled] = handle;
+            sPooledModes[sNumPooled] = decodeMode;
+            sNumPooled++;
+            return true;
+        }
     }
 
     public int readSamples(short[] buffer, int offset, int numSamples) {
-        return readSamples(_handle, buffer, offset, numSamples);
-    }
-    public int skipSamples(int numSamples) { return skipSamples(_handle, numSamples); }
-    public int seek(float offset) { return seek(_handle, offset); }
-    public float getPosition() { return getPosition(_handle); }
-    public int getNumChannels() { return getNumChannels(_handle); }
-    public int getRate() { return getRate(_handle); }
-    public int getBitRate() { return getBitRate(_handle); }
-    public int getSampleRate() { return getSampleRate(_handle); }
-    public float getDuration() { return getDuration(_handle); }
-    public int getFrameLen() { return getFrameLen(_handle); }
-    public float getFramesPerSecond() { return getFramesPerSecond(_handle); }
-    public int getSamplesPerFrame() { return getSamplesPerFrame(_handle); }
-    public int readNextFrame() { return readNextFrame(_handle); }
-    public int decodeFrame() { return decodeFrame(_handle); }
-    public int readSamplesAll() { return readSamplesAll(_handle); }
+        long handle = acquire();
+        try {
+            return readSamples(handle, buffer, offset, numSamples);
+        } finally {
+            done();
+        }
+    }
+
+    /**
+     * Reads up to numSamples decoded samples into buffer at its position,
+     * advancing it, with the native side copying straight into the
+     * buffer's memory.  The buffer must be direct and in native byte
+     * order.  Returns the number of samples read, which is only less
+     * than asked for if the buffer fills up or the file ends.
+     */
+    public int readSamples(ShortBuffer buffer, int numSamples) {
+        if (!buffer.isDirect() || buffer.order() != ByteOrder.nativeOrder())
+            throw new IllegalArgumentException( "Need a direct buffer in native order" );
+        if (numSamples > buffer.remaining())
+            numSamples = buffer.remaining();
+        int count;
+        long handle = acquire();
+        try {
+            count = readSamplesDirect(handle, buffer, buffer.position(), numSamples);
+        } finally {
+            done();
+        }
+        if (count > 0)
+            buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    public int skipSamples(int numSamples) {
+        long handle = acquire();
+        try {
+            return skipSamples(handle, numSamples);
+        } finally {
+            done();
+        }
+    }
+    public int seek(float offset) {
+        long handle = acquire();
+        try {
+            return seek(handle, offset);
+        } finally {
+            done();
+        }
+    }
+
+    /**
+     * Seeks so that the next sample read is the first sample of the
+     * given frame, numbering frames the way scanAll does.  Returns the
+     * frame, or a negative error code.  Only fast if setIndex has been
+     * given the frame offsets; otherwise it reads from the start.
+     */
+    public long seekToFrame(int frame) {
+        long handle = acquire();
+        try {
+            return seekToFrame(handle, frame);
+        } finally {
+            done();
+        }
+    }
+
+    /**
+     * Tells the decoder where frames 0, step, 2 * step, ... start, as
+     * found by an earlier scanAll of the same file, so that seekToFrame
+     * can jump straight to the nearest of them.  Returns 0 on success
+     * or an error code for getErrorMessage.
+     */
+    public int setIndex(long[] offsets, int step) {
+        long handle = acquire();
+        try {
+            return setIndex(handle, offsets, step);
+        } finally {
+            done();
+        }
+    }
+    public float getPosition() {
+        long handle = acquire();
+        try {
+            return getPosition(handle);
+        } finally {
+            done();
+        }
+    }
+    public int getNumChannels() {
+        long handle = acquire();
+        try {
+            return getNumChannels(handle);
+        } finally {
+            done();
+        }
+    }
+
+    /**
+     * Returns the number of channels in the decoded samples, which is 1
+     * for the decode modes that mix down to mono.
+     */
+    public int getOutputChannels() {
+        long handle = acquire();
+        try {
+            return getOutputChannels(handle);
+        } finally {
+            done();
+        }
+    }
+    public int getRate() {
+        long handle = acquire();
+        try {
+            return getRate(handle);
+        } finally {
+            done();
+        }
+    }
+    public int getBitRate() {
+        long handle = acquire();
+        try {
+            return getBitRate(handle);
+        } finally {
+            done();
+        }
+    }
+    public int getSampleRate() {
+        long handle = acquire();
+        try {
+            return getSampleRate(handle);
+        } finally {
+            done();
+        }
+    }
+    public float getDuration() {
+        long handle = acquire();
+        try {
+            return getDuration(handle);
+        } finally {
+            done();
+        }
+    }
+    public int getFrameLen() {
+        long handle = acquire();
+        try {
+            return getFrameLen(handle);
+        } finally {
+            done();
+        }
+    }
+
+    public long[] getCounters() {
+        long[] counters = new long[NUM_COUNTERS];
+        long handle = acquire();
+        try {
+            getCounters(handle, counters);
+        } finally {
+            done();
+        }
+        return counters;
+    }
+    public float getFramesPerSecond() {
+        long handle = acquire();
+        try {
+            return getFramesPerSecond(handle);
+        } finally {
+            done();
+        }
+    }
+    public int getSamplesPerFrame() {
+        long handle = acquire();
+        try {
+            return getSamplesPerFrame(handle);
+        } finally {
+            done();
+        }
+    }
+    public int readNextFrame() {
+        long handle = acquire();
+        try {
+            return readNextFrame(handle);
+        } finally {
+            done();
+        }
+    }
+    public int decodeFrame() {
+        long handle = acquire();
+        try {
+            return decodeFrame(handle);
+        } finally {
+            done();
+        }
+    }
+    public int readSamplesAll() {
+        long handle = acquire();
+        try {
+            return readSamplesAll(handle);
+        } finally {
+            done();
+        }
+    }
+
+    /**
+     * Decodes frames until the arrays are full or the file ends, storing
+     * each frame's byte offset, length and gain starting at index start,
+     * all in a single native call.  Every interval frames the listener
+     * (if not null) is told how far through the file we are; returning
+     * false stops the scan.  Returns the index after the last frame
+     * stored; if that's the length of the arrays, grow them and call
+     * again to continue.  If the listener stopped the scan, returns -1
+     * minus that index instead, so a scan cancelled just as the arrays
+     * filled up isn't mistaken for one that has more to do.
+     */
+    public int scanAll(long[] offsets, int[] lens, int[] gains, int start, long fileSize,
+                       CheapSoundFile.ProgressListener listener, int interval) {
+        long handle = acquire();
+        try {
+            return scanAll(handle, offsets, lens, gains, null, 0, start, fileSize,
+                           listener, interval);
+        } finally {
+            done();
+        }
+    }
+
+    /**
+     * Like scanAll above, but also splits each frame's samples into
+     * levelsPerFrame equal parts (e.g. 2 for the granules of an MPEG-1
+     * layer III frame) and stores the peak and RMS of each channel of
+     * each part, from 0 to 32767, in levels.  Frame i's values start at
+     * levels[i * levelsPerFrame * getOutputChannels() * 2], ordered by part,
+     * then channel, then peak before RMS.  levels must have room for as
+     * many frames as gains, or it's left alone.
+     */
+    public int scanAll(long[] offsets, int[] lens, int[] gains,
+                       short[] levels, int levelsPerFrame, int start, long fileSize,
+                       CheapSoundFile.ProgressListener listener, int interval) {
+        long handle = acquire();
+        try {
+            return scanAll(handle, offsets, lens, gains, levels, levelsPerFrame, start,
+                           fileSize, listener, interval);
+        } finally {
+            done();
+        }
+    }
 }
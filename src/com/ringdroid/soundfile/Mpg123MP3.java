@@ -16,9 +16,12 @@
 
 package com.ringdroid.soundfile;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 import java.util.ArrayList;
 
@@ -40,6 +43,24 @@ import android.util.Log;
 public class Mpg123MP3 extends CheapSoundFile {
     private static String TAG = "Mpg123MP3";
 
+    // Set to log every frame's gain after a scan
+    private static final boolean DEBUG = false;
+
+    // How many frames the native scanner decodes between progress reports
+    private static final int PROGRESS_INTERVAL = 128;
+
+    // How many frames the native scanner fills in per call
+    private static final int SCAN_CHUNK_FRAMES = 8 * PROGRESS_INTERVAL;
+
+    // How many samples readPcm decodes at a time when it can't decode
+    // straight into the caller's buffer
+    private static final int PCM_BUFFER_SAMPLES = 16 * 1024;
+
+    // The most frame offsets to hand a decoder for seeking.  Longer
+    // files index every second, fourth, ... frame, and seeking reads
+    // forward over the few frame headers in between.
+    private static final int MAX_SEEK_INDEX_FRAMES = 16 * 1024;
+
     public static Factory getFactory() {
         return new Factory() {
             public CheapSoundFile create() {
@@ -52,33 +73,65 @@ public class Mpg123MP3 extends CheapSoundFile {
     }
 
     // Member variables representing frame data
-    private int mNumFrames;
-    private int[] mFrameOffsets;
-    private int[] mFrameLens;
-    private int[] mFrameGains;
-    private int mFileSize;
+    private FrameIndex mFrames;
+    private long mFileSize;
     private int mAvgBitRate;
     private int mGlobalSampleRate;
     private int mGlobalChannels;
 
-    // Member variables used during initialization
-    private int mMaxFrames;
-    private int mBitrateSum;
-    private int mMinGain;
-    private int mMaxGain;
-
     // Samples Per Frame. will be recalculated by decoder
     private int mSamplesPerFrame = 1152;
 
+    // Per-channel peak and RMS levels, see getLevels()
+    private short[] mLevels;
+    private int mLevelsPerFrame;
+    private int mLevelChannels;
+
+    // How the scan decodes.  By default every frame is fully decoded,
+    // so the gains are exact.
+    private static int sScanDecodeMode = Mpg123Decoder.DECODE_FULL;
+
+    /**
+     * Set the Mpg123Decoder decode mode used when scanning files.
+     * Mpg123Decoder.DECODE_HALF_RATE or DECODE_QUARTER_RATE mix to mono
+     * and drop the upper half or three quarters of the spectrum before
+     * taking the gains, which scans faster but reads lower for frames
+     * whose energy is in anti-phase stereo or high frequencies: on
+     * broadband noise, the worst case, some frames read over 100 lower
+     * out of 255.  Only use them where a rough waveform will do.
+     */
+    public static void setScanDecodeMode(int decodeMode) {
+        sScanDecodeMode = decodeMode;
+    }
+
+    // How many sets of levels the scan keeps per frame, 0 for none.
+    private static int sLevelsPerFrame = 0;
+
+    /**
+     * Set how many parts each frame is split into for getLevels() when
+     * scanning files, e.g. 2 for one set of levels per 576-sample
+     * granule of an MPEG-1 layer III frame, or 0 (the default) to not
+     * keep levels at all.  Separate levels for each channel need the
+     * scan to use Mpg123Decoder.DECODE_FULL, the default; the other
+     * decode modes mix to mono first.
+     */
+    public static void setLevelsPerFrame(int levelsPerFrame) {
+        sLevelsPerFrame = Math.max(levelsPerFrame, 0);
+    }
+
     public Mpg123MP3() {
     }
 
     public int getNumFrames() {
-        return mNumFrames;
+        return mFrames.size();
+    }
+
+    public FrameIndex getFrameIndex() {
+        return mFrames;
     }
 
-    public int[] getFrameOffsets() {
-        return mFrameOffsets;
+    public long[] getFrameOffsets() {
+        return mFrames.getOffsets();
     }
 
     public int getSamplesPerFrame() {
@@ -86,14 +139,14 @@ public class Mpg123MP3 extends CheapSoundFile {
     }
 
     public int[] getFrameLens() {
-        return mFrameLens;
+        return mFrames.getLens();
     }
 
     public int[] getFrameGains() {
-        return mFrameGains;
+        return mFrames.getGains();
     }
 
-    public int getFileSizeBytes() {
+    public long getFileSizeBytes() {
         return mFileSize;        
     }
 
@@ -109,6 +162,29 @@ public class Mpg123MP3 extends CheapSoundFile {
         return mGlobalChannels;
     }
 
+    /**
+     * Returns the peak and RMS of each channel of each part of each
+     * frame, from 0 to 32767, or null if the file was scanned without
+     * them (see setLevelsPerFrame).  Frame i's levels start at index
+     * i * getLevelsPerFrame() * getLevelChannels() * 2, ordered by part,
+     * then channel, then peak before RMS.
+     */
+    public short[] getLevels() {
+        return mLevels;
+    }
+
+    public int getLevelsPerFrame() {
+        return mLevelsPerFrame;
+    }
+
+    /**
+     * Returns the number of channels in getLevels(), which is 1 if the
+     * scan mixed to mono.
+     */
+    public int getLevelChannels() {
+        return mLevelChannels;
+    }
+
     public String getFiletype() {
         return "MP3";
     }
@@ -118,146 +194,278 @@ public class Mpg123MP3 extends CheapSoundFile {
      * so this method is supported to hear exactly what a "cut" of the file
      * sounds like without needing to actually save a file to disk first.
      */
-    public int getSeekableFrameOffset(int frame) {
+    public long getSeekableFrameOffset(int frame) {
         if (frame <= 0) {
             return 0;
-        } else if (frame >= mNumFrames) {
+        } else if (frame >= mFrames.size()) {
             return mFileSize;
         } else {
-            return mFrameOffsets[frame];
+            return mFrames.getOffset(frame);
         }
     }
 
-    public void ReadFile(File inputFile)
-            throws java.io.FileNotFoundException,
-            java.io.IOException {
-        super.ReadFile(inputFile);
-
-        Mpg123Decoder decoder = new Mpg123Decoder( inputFile.getAbsolutePath() );
-
-        mNumFrames = 0;
-        mMaxFrames = 64;  // This will grow as needed
-        mFrameOffsets = new int[mMaxFrames];
-        mFrameLens = new int[mMaxFrames];
-        mFrameGains = new int[mMaxFrames];
-        mBitrateSum = 0;
-        mMinGain = 255;
-        mMaxGain = 0;
+    /**
+     * Opens a full-rate decoder for the file, seeked to startFrame.  The
+     * decoder is given the frame offsets we already have, so seeking
+     * doesn't need to read the file up to there, even for VBR files.
+     * It comes from Mpg123Decoder.obtain, so give it back with release()
+     * when done with it.
+     */
+    public Mpg123Decoder openDecoder(int startFrame)
+            throws java.io.IOException {
+        Mpg123Decoder decoder;
+        try {
+            decoder = Mpg123Decoder.obtain(
+                mInputFile.getAbsolutePath(), Mpg123Decoder.DECODE_FULL);
+        } catch (IllegalArgumentException e) {
+            throw new java.io.IOException(e.getMessage());
+        }
+        int numFrames = mFrames.size();
+        if (startFrame > 0 && numFrames > 0) {
+            int step = 1;
+            while ((numFrames + step - 1) / step > MAX_SEEK_INDEX_FRAMES) {
+                step *= 2;
+            }
+            long[] offsets = new long[(numFrames + step - 1) / step];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = mFrames.getOffset(i * step);
+            }
+            int err = decoder.setIndex(offsets, step);
+            if (err != 0) {
+                // Still seeks, just by reading up to startFrame
+                Log.w(TAG, "Couldn't set seek index: " +
+                      Mpg123Decoder.getErrorString(err));
+            }
+            long frame = decoder.seekToFrame(startFrame);
+            if (frame != startFrame) {
+                decoder.release();
+                throw new java.io.IOException(
+                    "Couldn't seek to frame " + startFrame + ": " +
+                    (frame < 0 ? Mpg123Decoder.getErrorString((int)frame) :
+                     "got frame " + frame));
+            }
+        }
+        return decoder;
+    }
 
-        // No need to handle filesizes larger than can fit in a 32-bit int
-        mFileSize = (int)mInputFile.length();
+    /**
+     * Decodes with a decoder from openDecoder, straight into out if it's
+     * a direct buffer in native byte order, or else through a direct
+     * buffer of our own.
+     */
+    public int readPcm(int startFrame, int numFrames, ShortBuffer out)
+            throws java.io.IOException {
+        if (startFrame < 0) {
+            numFrames += startFrame;
+            startFrame = 0;
+        }
+        if (numFrames > mFrames.size() - startFrame) {
+            numFrames = mFrames.size() - startFrame;
+        }
+        if (numFrames <= 0) {
+            return 0;
+        }
 
-        int pos = 0;
+        Mpg123Decoder decoder = openDecoder(startFrame);
+        try {
+            int channels = decoder.getNumChannels();
+            int samplesPerFrame = mSamplesPerFrame * channels;
+
+            // Whole sample frames only, and no more than out has room for
+            int numSamples = (int)Math.min(
+                (long)numFrames * samplesPerFrame, out.remaining());
+            numSamples -= numSamples % channels;
+            if (out.isDirect() && out.order() == ByteOrder.nativeOrder()) {
+                return decoder.readSamples(out, numSamples);
+            }
 
-        while (true) {
-            if (mProgressListener != null) {
-                boolean keepGoing = mProgressListener.reportProgress(
-                    pos * 1.0 / mFileSize);
-                if (!keepGoing) {
+            ShortBuffer buffer = ByteBuffer.allocateDirect(
+                2 * Math.min(numSamples, PCM_BUFFER_SAMPLES))
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+            int total = 0;
+            while (total < numSamples) {
+                buffer.clear();
+                int count = decoder.readSamples(
+                    buffer, Math.min(numSamples - total, buffer.capacity()));
+                if (count <= 0) {
                     break;
                 }
+                buffer.flip();
+                out.put(buffer);
+                total += count;
             }
+            return total;
+        } finally {
+            decoder.release();
+        }
+    }
+
+    public void ReadFile(File inputFile)
+            throws java.io.FileNotFoundException,
+            java.io.IOException {
+        super.ReadFile(inputFile);
 
-            int ret = decoder.readNextFrame();
-            if (ret < 0)
-                break;
-            ret = decoder.decodeFrame();
-            int gain = decoder.readSamplesAll();
-            if (gain < 0)
-                break;
+        Mpg123Decoder decoder;
+        try {
+            decoder = Mpg123Decoder.obtain(
+                inputFile.getAbsolutePath(), sScanDecodeMode);
+        } catch (IllegalArgumentException e) {
+            throw new java.io.IOException(e.getMessage());
+        }
+        int levelsStride;
+        try {
+            mFrames = new FrameIndex();
 
-            // The third byte has the bitrate and samplerate
-            int bitRate = decoder.getBitRate();
-            int sampleRate = decoder.getSampleRate();
+            mFileSize = mInputFile.length();
 
-            // From here on we assume the frame is good
-            mGlobalSampleRate = sampleRate;
+            // The decoder has already parsed the first frame, so these are
+            // known before the scan starts, for the frame listener.
+            mGlobalSampleRate = decoder.getSampleRate();
             mGlobalChannels = decoder.getNumChannels();
-
-            mBitrateSum += bitRate;
-
-            int frameLen = decoder.getFrameLen();
-            Log.d(TAG, "pos = " + pos);
-            Log.d(TAG, "frameLen = " + frameLen);
-            mFrameOffsets[mNumFrames] = pos;
-            mFrameLens[mNumFrames] = frameLen;
-            mFrameGains[mNumFrames] = gain;
-            if (gain < mMinGain)
-                mMinGain = gain;
-            if (gain > mMaxGain)
-                mMaxGain = gain;
-
-            pos += frameLen;
-
-            mNumFrames++;
-            Log.d(TAG, "Gain[" + mNumFrames + "] => " + gain);
-            if (mNumFrames == mMaxFrames) {
-                // We need to grow our arrays.  Rather than naively
-                // doubling the array each time, we estimate the exact
-                // number of frames we need and add 10% padding.  In
-                // practice this seems to work quite well, only one
-                // resize is ever needed, however to avoid pathological
-                // cases we make sure to always double the size at a minimum.
-
-                mAvgBitRate = mBitrateSum / mNumFrames;
-                int totalFramesGuess =
-                    ((mFileSize / mAvgBitRate) * sampleRate) / 144000;
-                int newMaxFrames = totalFramesGuess * 11 / 10;
-                if (newMaxFrames < mMaxFrames * 2)
-                    newMaxFrames = mMaxFrames * 2;
-
-                int[] newOffsets = new int[newMaxFrames];
-                int[] newLens = new int[newMaxFrames];
-                int[] newGains = new int[newMaxFrames];
-                for (int i = 0; i < mNumFrames; i++) {
-                    newOffsets[i] = mFrameOffsets[i];
-                    newLens[i] = mFrameLens[i];
-                    newGains[i] = mFrameGains[i];
+            mSamplesPerFrame = decoder.getSamplesPerFrame();
+
+            // The decoder walks the file natively, filling in a chunk of
+            // frames at a time and calling the progress listener every
+            // PROGRESS_INTERVAL frames, so the only JNI crossings are the
+            // progress callbacks and one call per chunk.
+            long[] offsets = new long[SCAN_CHUNK_FRAMES];
+            int[] lens = new int[SCAN_CHUNK_FRAMES];
+            int[] gains = new int[SCAN_CHUNK_FRAMES];
+            short[] levels = null;
+            levelsStride = 0;
+            mLevels = null;
+            mLevelsPerFrame = sLevelsPerFrame;
+            mLevelChannels = decoder.getOutputChannels();
+            if (mLevelsPerFrame > 0 &&
+                (mLevelChannels == 1 || mLevelChannels == 2)) {
+                levelsStride = mLevelsPerFrame * mLevelChannels * 2;
+                levels = new short[SCAN_CHUNK_FRAMES * levelsStride];
+                mLevels = new short[levels.length];
+            } else {
+                mLevelsPerFrame = 0;
+                mLevelChannels = 0;
+            }
+            boolean cancelled = false;
+            while (!cancelled) {
+                int numFrames = decoder.scanAll(offsets, lens, gains,
+                                                levels, mLevelsPerFrame, 0,
+                                                mFileSize, mProgressListener,
+                                                PROGRESS_INTERVAL);
+                if (numFrames < 0) {
+                    numFrames = -1 - numFrames;
+                    cancelled = true;
+                }
+                if (levels != null) {
+                    int start = mFrames.size() * levelsStride;
+                    int len = numFrames * levelsStride;
+                    if (start + len > mLevels.length) {
+                        short[] grown = new short[
+                            Math.max(mLevels.length * 2, start + len)];
+                        System.arraycopy(mLevels, 0, grown, 0, start);
+                        mLevels = grown;
+                    }
+                    System.arraycopy(levels, 0, mLevels, start, len);
+                }
+                for (int i = 0; i < numFrames; i++) {
+                    mFrames.add(offsets[i], lens[i], gains[i]);
+                }
+                reportFrames(mFrames.size(), false);
+                if (numFrames < SCAN_CHUNK_FRAMES) {
+                    break;
                 }
-                mFrameOffsets = newOffsets;
-                mFrameLens = newLens;
-                mFrameGains = newGains;
-                mMaxFrames = newMaxFrames;
             }
+            reportFrames(mFrames.size(), true);
+            mStats.addDecodeErrors(
+                decoder.getCounters()[Mpg123Decoder.COUNTER_DECODE_ERRORS]);
+        } finally {
+            decoder.release();
         }
 
         // We're done reading the file, do some postprocessing
-        if (mNumFrames > 0)
-            mAvgBitRate = mBitrateSum / mNumFrames;
-        else
+        mFrames.trimToSize();
+        int numFrames = mFrames.size();
+        if (mLevels != null && mLevels.length > numFrames * levelsStride) {
+            short[] trimmed = new short[numFrames * levelsStride];
+            System.arraycopy(mLevels, 0, trimmed, 0, trimmed.length);
+            mLevels = trimmed;
+        }
+        long totalBytes = mFrames.getTotalLen(0, numFrames);
+        if (numFrames > 0 && mSamplesPerFrame > 0) {
+            // bytes * 8 / seconds / 1000
+            mAvgBitRate = (int)(totalBytes * 8 * mGlobalSampleRate /
+                                (1000L * numFrames * mSamplesPerFrame));
+        } else {
             mAvgBitRate = 0;
+        }
 
-        mSamplesPerFrame = decoder.getSamplesPerFrame();
-
-        for (int i = 0; i < mFrameGains.length; i++) {
-            Log.d(TAG, "[" + i + "] => " + mFrameGains[i]);
+        if (DEBUG) {
+            for (int i = 0; i < numFrames; i++) {
+                Log.d(TAG, "[" + i + "] => " + mFrames.getGain(i));
+            }
         }
     }
 
-    public void WriteFile(File outputFile, int startFrame, int numFrames)
+    String getCacheVariant() {
+        return super.getCacheVariant() + ":" + sScanDecodeMode + ":" +
+            sLevelsPerFrame;
+    }
+
+    void writeCache(DataOutputStream out)
             throws java.io.IOException {
-        outputFile.createNewFile();
-        FileInputStream in = new FileInputStream(mInputFile);
-        FileOutputStream out = new FileOutputStream(outputFile);
-        int maxFrameLen = 0;
-        for (int i = 0; i < numFrames; i++) {
-            if (mFrameLens[startFrame + i] > maxFrameLen)
-                maxFrameLen = mFrameLens[startFrame + i];
+        out.writeLong(mFileSize);
+        out.writeInt(mAvgBitRate);
+        out.writeInt(mGlobalSampleRate);
+        out.writeInt(mGlobalChannels);
+        out.writeInt(mSamplesPerFrame);
+        mFrames.write(out);
+        out.writeInt(mLevelsPerFrame);
+        out.writeInt(mLevelChannels);
+        out.writeInt(mLevels != null ? mLevels.length : -1);
+        if (mLevels != null) {
+            for (int i = 0; i < mLevels.length; i++) {
+                out.writeShort(mLevels[i]);
+            }
         }
-        byte[] buffer = new byte[maxFrameLen];
-        int pos = 0;
-        for (int i = 0; i < numFrames; i++) {
-            int skip = mFrameOffsets[startFrame + i] - pos;
-            int len = mFrameLens[startFrame + i];
-            if (skip > 0) {
-                in.skip(skip);
-                pos += skip;
+    }
+
+    void readCache(DataInputStream in)
+            throws java.io.IOException {
+        mFileSize = in.readLong();
+        mAvgBitRate = in.readInt();
+        mGlobalSampleRate = in.readInt();
+        mGlobalChannels = in.readInt();
+        mSamplesPerFrame = in.readInt();
+        mFrames = FrameIndex.read(in);
+        mLevelsPerFrame = in.readInt();
+        mLevelChannels = in.readInt();
+        int numLevels = in.readInt();
+        if (numLevels < 0) {
+            // Slices don't carry levels over, so scan again for them
+            if (sLevelsPerFrame > 0) {
+                throw new java.io.IOException("No levels");
+            }
+            mLevels = null;
+        } else {
+            if (numLevels != mFrames.size() * mLevelsPerFrame *
+                mLevelChannels * 2 || numLevels > in.available()) {
+                throw new java.io.IOException("Bad levels");
+            }
+            mLevels = new short[numLevels];
+            for (int i = 0; i < numLevels; i++) {
+                mLevels[i] = in.readShort();
             }
-            in.read(buffer, 0, len);
-            out.write(buffer, 0, len);
-            pos += len;
         }
-        in.close();
-        out.close();
+    }
+
+    protected CheapSoundFile newSlice(FrameIndex frames,
+                                      long headerLen, long dataLen) {
+        Mpg123MP3 slice = new Mpg123MP3();
+        slice.mFrames = frames;
+        slice.mFileSize = headerLen + dataLen;
+        slice.mAvgBitRate = mAvgBitRate;
+        slice.mGlobalSampleRate = mGlobalSampleRate;
+        slice.mGlobalChannels = mGlobalChannels;
+        slice.mSamplesPerFrame = mSamplesPerFrame;
+        return slice;
     }
 };
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ParallelScan splits the frames of a sound file into ranges and hands
+ * them to a pool of worker threads.  It's only useful for formats where
+ * the gain of each frame depends on nothing but that frame's own bytes,
+ * or, like AMR, on a little state that a range can rebuild by reading
+ * a few frames before it, so that the ranges can be filled in
+ * independently and in any order.
+ *
+ * Progress is reported, and cancellation checked, on the calling thread
+ * each time a range finishes, so neither a ProgressListener nor a
+ * FrameListener needs to be thread-safe, and a ProgressListener can
+ * cancel a parallel scan just like a serial one.
+ *
+ * The workers are never interrupted: an interrupt during a read would
+ * close the caller's FileChannel under every other worker.  Instead,
+ * ranges that haven't started yet are skipped once the scan is
+ * cancelled or fails, and scan() waits for the ones already running
+ * before it returns, so no worker outlives the caller's channel.
+ */
+class ParallelScan {
+    /**
+     * Fills in the frame data for frames [startFrame, endFrame).  Called
+     * concurrently from several threads, each with a disjoint range.
+     */
+    public interface RangeScanner {
+        void scanRange(int startFrame, int endFrame)
+            throws java.io.IOException;
+    }
+
+    // Don't bother with threads for fewer frames than this per thread;
+    // a few seconds of audio scan faster than the threads start.
+    private static final int MIN_FRAMES_PER_THREAD = 1024;
+
+    /**
+     * A maxFramesPerRange for formats with no natural limit of their
+     * own: small enough that progress and cancellation are checked a
+     * few times a second even in long files, big enough that the cost
+     * of starting a range doesn't matter.
+     */
+    static final int RESPONSIVE_FRAMES_PER_RANGE = 2048;
+
+    /**
+     * Returns true if a file with this many frames should be scanned
+     * in parallel, given the current CheapSoundFile.setScanThreads().
+     */
+    public static boolean isWorthwhile(int numFrames) {
+        int numThreads = CheapSoundFile.getScanThreads();
+        return numThreads > 1 && numFrames >= 2 * MIN_FRAMES_PER_THREAD;
+    }
+
+    /**
+     * Scans frames [0, numFrames) of soundFile in ranges of at most
+     * maxFramesPerRange frames.  Returns false if its progress listener
+     * cancelled the scan, in which case some ranges may not have been
+     * scanned.  As the ranges at the start of the file finish, the
+     * frames up to the first one that hasn't are passed to
+     * soundFile.reportFrames, so they arrive in order.
+     */
+    public static boolean scan(CheapSoundFile soundFile,
+                               int numFrames,
+                               int maxFramesPerRange,
+                               final RangeScanner scanner)
+            throws java.io.IOException {
+        int numThreads = CheapSoundFile.getScanThreads();
+        CheapSoundFile.ProgressListener listener =
+            soundFile.mProgressListener;
+
+        // Use several ranges per thread so that a slow range doesn't
+        // leave the other threads idle at the end.
+        int framesPerRange = numFrames / (numThreads * 4) + 1;
+        if (framesPerRange > maxFramesPerRange) {
+            framesPerRange = maxFramesPerRange;
+        }
+        if (framesPerRange < 1) {
+            framesPerRange = 1;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        CompletionService<Integer> completion =
+            new ExecutorCompletionService<Integer>(executor);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        try {
+            int numRanges = 0;
+            for (int start = 0; start < numFrames; start += framesPerRange) {
+                final int rangeIndex = numRanges;
+                final int rangeStart = start;
+                final int rangeEnd = Math.min(start + framesPerRange,
+                                              numFrames);
+                completion.submit(new Callable<Integer>() {
+                    public Integer call() throws java.io.IOException {
+                        if (!cancelled.get()) {
+                            scanner.scanRange(rangeStart, rangeEnd);
+                        }
+                        return rangeIndex;
+                    }
+                });
+                numRanges++;
+            }
+
+            boolean[] rangeDone = new boolean[numRanges];
+            int firstUnfinishedRange = 0;
+            int framesDone = 0;
+            for (int i = 0; i < numRanges; i++) {
+                int rangeIndex = completion.take().get();
+                rangeDone[rangeIndex] = true;
+                int rangeStart = rangeIndex * framesPerRange;
+                framesDone += Math.min(framesPerRange,
+                                       numFrames - rangeStart);
+
+                if (rangeIndex == firstUnfinishedRange) {
+                    while (firstUnfinishedRange < numRanges &&
+                           rangeDone[firstUnfinishedRange]) {
+                        firstUnfinishedRange++;
+                    }
+                    soundFile.reportFrames(
+                        Math.min(firstUnfinishedRange * framesPerRange,
+                                 numFrames),
+                        false);
+                }
+
+                if (listener != null) {
+                    boolean keepGoing = listener.reportProgress(
+                        framesDone * 1.0 / numFrames);
+                    if (!keepGoing) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException(
+                "Interrupted while scanning");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof java.io.IOException) {
+                throw (java.io.IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new java.io.IOException(cause.toString());
+        } finally {
+            cancelled.set(true);
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Waits for the ranges that are already running to finish, without
+     * giving up if this thread is interrupted; the interrupt is kept for
+     * the caller to see.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+/**
+ * ScanStats counts what a CheapSoundFile did to open its file: how
+ * many frames it read to compute their gains and how many bytes those
+ * frames took up, how many frames failed to decode, and how long each
+ * phase took.  The counters are only updated once per scan or chunk of
+ * frames, never per frame, so they're always on; toString() gives a
+ * one-line summary for logging.
+ *
+ * Only files opened with CheapSoundFile.create() have their phases
+ * timed.
+ */
+public class ScanStats {
+    /** Reading a file's frames back from the frame cache */
+    public static final int PHASE_CACHE = 0;
+    /** ReadFile or ReadFrameIndex */
+    public static final int PHASE_INDEX = 1;
+    /** computeGains, for files whose gains were deferred */
+    public static final int PHASE_GAINS = 2;
+
+    private static final String[] PHASE_NAMES = { "cache", "index", "gains" };
+
+    private long mFramesScanned;
+    private long mBytesRead;
+    private long mDecodeErrors;
+    private long[] mPhaseNanos = new long[PHASE_NAMES.length];
+
+    ScanStats() {
+    }
+
+    synchronized void addFrames(long numFrames, long numBytes) {
+        mFramesScanned += numFrames;
+        mBytesRead += numBytes;
+    }
+
+    synchronized void addDecodeErrors(long numErrors) {
+        mDecodeErrors += numErrors;
+    }
+
+    synchronized void addPhaseTime(int phase, long nanos) {
+        mPhaseNanos[phase] += nanos;
+    }
+
+    /**
+     * Returns the number of frames whose gains have been computed by
+     * reading them, which doesn't include frames from the cache.
+     */
+    public synchronized long getFramesScanned() {
+        return mFramesScanned;
+    }
+
+    /**
+     * Returns the number of bytes of frame data read to compute gains.
+     */
+    public synchronized long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Returns the number of frames that couldn't be decoded or were of
+     * a type we don't support; their gains are only a guess.
+     */
+    public synchronized long getDecodeErrors() {
+        return mDecodeErrors;
+    }
+
+    /**
+     * Returns the total time spent so far in the given phase, one of
+     * the PHASE_ constants.
+     */
+    public synchronized long getPhaseMillis(int phase) {
+        return mPhaseNanos[phase] / 1000000;
+    }
+
+    public synchronized String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("frames=").append(mFramesScanned);
+        s.append(" bytes=").append(mBytesRead);
+        s.append(" decodeErrors=").append(mDecodeErrors);
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            s.append(' ').append(PHASE_NAMES[phase]).append('=');
+            s.append(mPhaseNanos[phase] / 1000000).append("ms");
+        }
+        return s.toString();
+    }
+};
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ringdroid.soundfile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+/**
+ * SubframeIndex is a FrameIndex for formats like AMR, whose frames are
+ * split into subframes that each get their own gain.  To everything
+ * outside it the frames are the subframes, each with the offset and
+ * length of the frame it's part of, just as if every subframe had been
+ * added separately.
+ *
+ * Inside, the offset and length of each frame are only kept once, in a
+ * plain FrameIndex whose gains hold the number of subframes in each
+ * frame, and only the gains are kept per subframe.  The first subframe
+ * of every BLOCK_SIZE-th frame is kept too, so finding the frame of a
+ * subframe takes a binary search and a short walk.
+ *
+ * Consecutive subframes added with the same offset and length are
+ * taken to be parts of the same frame.  Gains are clamped to 0 - 65535.
+ */
+class SubframeIndex extends FrameIndex {
+    private static final int BLOCK_SHIFT = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int MAX_SUBFRAMES = 0xff;
+
+    private FrameIndex mFrames;
+    private int[] mBlockFirstSubframes;
+    private char[] mGains;
+    private int mNumSubframes;
+
+    /**
+     * Creates an index with room for capacity subframes before it
+     * needs to grow.
+     */
+    SubframeIndex(int capacity) {
+        super(0, false);
+        if (capacity < BLOCK_SIZE) {
+            capacity = BLOCK_SIZE;
+        }
+        mFrames = new FrameIndex(64, false);
+        mBlockFirstSubframes = new int[8];
+        mGains = new char[capacity];
+        mNumSubframes = 0;
+    }
+
+    public int size() {
+        return mNumSubframes;
+    }
+
+    /**
+     * Appends a subframe, to the last frame if it has the same offset
+     * and length, or else as the first subframe of a new frame.
+     */
+    public void add(long offset, int len, int gain) {
+        if (mNumSubframes == mGains.length) {
+            char[] gains = new char[mGains.length * 2];
+            System.arraycopy(mGains, 0, gains, 0, mNumSubframes);
+            mGains = gains;
+        }
+        setGain(mNumSubframes, gain);
+
+        int lastFrame = mFrames.size() - 1;
+        if (lastFrame >= 0 &&
+            mFrames.getOffset(lastFrame) == offset &&
+            mFrames.getLen(lastFrame) == len &&
+            mFrames.getGain(lastFrame) < MAX_SUBFRAMES) {
+            mFrames.setGain(lastFrame, mFrames.getGain(lastFrame) + 1);
+        } else {
+            int frame = lastFrame + 1;
+            if ((frame & (BLOCK_SIZE - 1)) == 0) {
+                int block = frame >> BLOCK_SHIFT;
+                if (block == mBlockFirstSubframes.length) {
+                    int[] firsts = new int[block * 2];
+                    System.arraycopy(mBlockFirstSubframes, 0, firsts, 0, block);
+                    mBlockFirstSubframes = firsts;
+                }
+                mBlockFirstSubframes[block] = mNumSubframes;
+            }
+            mFrames.add(offset, len, 1);
+        }
+        mNumSubframes++;
+    }
+
+    public long getOffset(int subframe) {
+        return mFrames.getOffset(frameOf(subframe));
+    }
+
+    public int getLen(int subframe) {
+        return mFrames.getLen(frameOf(subframe));
+    }
+
+    public int getGain(int subframe) {
+        return mGains[subframe];
+    }
+
+    public void setGain(int subframe, int gain) {
+        if (gain < 0) {
+            gain = 0;
+        }
+        mGains[subframe] = (char)(gain > 0xffff ? 0xffff : gain);
+    }
+
+    public int getMinGain() {
+        int minGain = Integer.MAX_VALUE;
+        for (int i = 0; i < mNumSubframes; i++) {
+            minGain = Math.min(minGain, mGains[i]);
+        }
+        return mNumSubframes > 0 ? minGain : 0;
+    }
+
+    public int getMaxGain() {
+        int maxGain = 0;
+        for (int i = 0; i < mNumSubframes; i++) {
+            maxGain = Math.max(maxGain, mGains[i]);
+        }
+        return maxGain;
+    }
+
+    /**
+     * Returns the first subframe of the frame after subframe's.
+     */
+    public int nextFrameAfter(int subframe) {
+        int frame = frameOf(subframe);
+        return firstSubframeOf(frame) + mFrames.getGain(frame);
+    }
+
+    /**
+     * Returns the total length of the frames the given subframes are
+     * part of, counting each frame once.
+     */
+    public long getTotalLen(int startFrame, int numFrames) {
+        long total = 0;
+        for (int i = startFrame;
+             i < startFrame + numFrames;
+             i = nextFrameAfter(i)) {
+            total += getLen(i);
+        }
+        return total;
+    }
+
+    public long[] getOffsets() {
+        long[] offsets = new long[mNumSubframes];
+        int i = 0;
+        for (int frame = 0; i < mNumSubframes; frame++) {
+            long offset = mFrames.getOffset(frame);
+            int end = Math.min(i + mFrames.getGain(frame), mNumSubframes);
+            for (; i < end; i++) {
+                offsets[i] = offset;
+            }
+        }
+        return offsets;
+    }
+
+    public int[] getLens() {
+        int[] lens = new int[mNumSubframes];
+        int i = 0;
+        for (int frame = 0; i < mNumSubframes; frame++) {
+            int len = mFrames.getLen(frame);
+            int end = Math.min(i + mFrames.getGain(frame), mNumSubframes);
+            for (; i < end; i++) {
+                lens[i] = len;
+            }
+        }
+        return lens;
+    }
+
+    public int[] getGains() {
+        int[] gains = new int[mNumSubframes];
+        for (int i = 0; i < mNumSubframes; i++) {
+            gains[i] = mGains[i];
+        }
+        return gains;
+    }
+
+    public void trimToSize() {
+        mFrames.trimToSize();
+        if (mGains.length > mNumSubframes) {
+            char[] gains = new char[mNumSubframes];
+            System.arraycopy(mGains, 0, gains, 0, mNumSubframes);
+            mGains = gains;
+        }
+    }
+
+    boolean hasWideGains() {
+        return true;
+    }
+
+    FrameIndex newIndex(int capacity) {
+        return new SubframeIndex(capacity);
+    }
+
+    /**
+     * Writes the index, for FrameCache.
+     */
+    void write(DataOutputStream out)
+            throws java.io.IOException {
+        mFrames.write(out);
+        out.writeInt(mNumSubframes);
+        writeChars(out, mGains, mNumSubframes);
+    }
+
+    /**
+     * Reads an index written by write().
+     */
+    static SubframeIndex readSubframes(DataInputStream in)
+            throws java.io.IOException {
+        FrameIndex frames = FrameIndex.read(in);
+        int n = in.readInt();
+        if (frames.hasWideGains() || n < frames.size() ||
+            n > in.available()) {
+            throw new java.io.IOException("Bad subframe index");
+        }
+
+        SubframeIndex index = new SubframeIndex(n);
+        index.mFrames = frames;
+        index.mBlockFirstSubframes =
+            new int[(frames.size() + BLOCK_SIZE - 1) >> BLOCK_SHIFT];
+        int subframe = 0;
+        for (int frame = 0; frame < frames.size(); frame++) {
+            if ((frame & (BLOCK_SIZE - 1)) == 0) {
+                index.mBlockFirstSubframes[frame >> BLOCK_SHIFT] = subframe;
+            }
+            subframe += frames.getGain(frame);
+        }
+        if (subframe != n) {
+            throw new java.io.IOException("Bad subframe count");
+        }
+        readChars(in, index.mGains, n);
+        index.mNumSubframes = n;
+        return index;
+    }
+
+    /**
+     * Returns the frame that subframe is part of.
+     */
+    private int frameOf(int subframe) {
+        // The last block that starts at or before subframe
+        int lo = 0;
+        int hi = ((mFrames.size() + BLOCK_SIZE - 1) >> BLOCK_SHIFT) - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mBlockFirstSubframes[mid] <= subframe) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        int frame = lo << BLOCK_SHIFT;
+        int first = mBlockFirstSubframes[lo];
+        int count = mFrames.getGain(frame);
+        while (subframe >= first + count) {
+            first += count;
+            frame++;
+            count = mFrames.getGain(frame);
+        }
+        return frame;
+    }
+
+    private int firstSubframeOf(int frame) {
+        int first = mBlockFirstSubframes[frame >> BLOCK_SHIFT];
+        for (int f = frame & ~(BLOCK_SIZE - 1); f < frame; f++) {
+            first += mFrames.getGain(f);
+        }
+        return first;
+    }
+};